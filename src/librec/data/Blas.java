@@ -0,0 +1,83 @@
+// Copyright (C) 2014-2015 Guibing Guo
+//
+// This file is part of LibRec.
+//
+// LibRec is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LibRec is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with LibRec. If not, see <http://www.gnu.org/licenses/>.
+//
+
+package librec.data;
+
+/**
+ * Level-1 and level-2 kernels over flat arrays, in the spirit of BLAS: a vector is given by an array, the offset of
+ * its first entry and its length, and a row-major matrix additionally by its leading dimension (the distance between
+ * two rows), as in {@link DenseMatrix#getData()} and {@link DenseMatrix#rowOffset(int)}.
+ * <p>
+ * Reductions are unrolled over four independent accumulators, which breaks the dependency chain of the additions so
+ * that the CPU can work on several entries at a time; the order of the additions hence differs from a sequential loop
+ * in the last bits. Element-wise loops are left plain, since the JIT vectorizes them by itself.
+ */
+public final class Blas {
+
+	private Blas() {
+	}
+
+	/**
+	 * @return the inner product of x[xo, xo + n) and y[yo, yo + n)
+	 */
+	public static double dot(int n, double[] x, int xo, double[] y, int yo) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for (int m = n - 3; i < m; i += 4) {
+			s0 += x[xo + i] * y[yo + i];
+			s1 += x[xo + i + 1] * y[yo + i + 1];
+			s2 += x[xo + i + 2] * y[yo + i + 2];
+			s3 += x[xo + i + 3] * y[yo + i + 3];
+		}
+		for (; i < n; i++)
+			s0 += x[xo + i] * y[yo + i];
+
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Do {@code y = a * x + y} on y[yo, yo + n)
+	 */
+	public static void axpy(int n, double a, double[] x, int xo, double[] y, int yo) {
+		for (int i = 0; i < n; i++)
+			y[yo + i] += a * x[xo + i];
+	}
+
+	/**
+	 * Do {@code x = a * x} on x[xo, xo + n)
+	 */
+	public static void scal(int n, double a, double[] x, int xo) {
+		for (int i = 0; i < n; i++)
+			x[xo + i] *= a;
+	}
+
+	/**
+	 * Do {@code y = A * x} for a row-major (m x n) matrix A
+	 *
+	 * @param a
+	 *            entries of A, where row i starts at ao + i * lda
+	 * @param ao
+	 *            offset of the first row of A
+	 * @param lda
+	 *            leading dimension of A
+	 */
+	public static void gemv(int m, int n, double[] a, int ao, int lda, double[] x, int xo, double[] y, int yo) {
+		for (int i = 0; i < m; i++)
+			y[yo + i] = dot(n, a, ao + i * lda, x, xo);
+	}
+}
@@ -18,8 +18,16 @@
 
 package librec.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import librec.util.Randoms;
 import librec.util.Strings;
@@ -27,21 +35,32 @@ import librec.util.Strings;
 /**
  * Data Structure: dense matrix <br>
  * 
- * A big reason that we do not adopt original DenseMatrix from M4J libraray is because the latter using one-dimensional
- * array to store data, which will often cause OutOfMemory exception due to the limit of maximum length of a
- * one-dimensional Java array.
+ * Entries are stored in a one-dimensional array in the row-major order, i.e., entry [row, column] is at
+ * {@code row * numColumns + column}, so that rows are contiguous and can be handed out as views without copying. The
+ * number of entries is thus limited by the maximum length of a one-dimensional Java array (about 2^31), which is ample
+ * for factor matrices (e.g., 1M users x 64 factors take 64M entries); larger matrices need to be split.
  * 
  * @author guoguibing
  * 
  */
 public class DenseMatrix implements Serializable {
 
-	private static final long serialVersionUID = -2069621030647530185L;
+	private static final long serialVersionUID = 7424159398352381574L;
+
+	// Gram matrices are summed up over a fixed partition of the rows, into at most GRAM_CHUNKS chunks of at least
+	// GRAM_MIN_ROWS rows with at most GRAM_MAX_ENTRIES entries of partial Grams in total, so that the results do not
+	// depend on the number of threads
+	private static final int GRAM_CHUNKS = 64, GRAM_MIN_ROWS = 4096, GRAM_MAX_ENTRIES = 1 << 22;
+	// products are split into tiles of at most GEMM_TILES rows of the result, and panels of at most
+	// GEMM_PANEL_WIDTH columns of a factor
+	private static final int GEMM_TILES = 64, GEMM_PANEL_WIDTH = 512;
+	// size of a block of rows (or of a panel) of a factor, which is kept in the L2 cache while it is used
+	private static final int BLOCK_BYTES = 1 << 17;
 
 	// dimension
 	protected int numRows, numColumns;
-	// read data
-	protected double[][] data;
+	// row-major data
+	protected double[] data;
 
 	/**
 	 * Construct a dense matrix with specified dimensions
@@ -52,10 +71,13 @@ public class DenseMatrix implements Serializable {
 	 *            number of columns
 	 */
 	public DenseMatrix(int numRows, int numColumns) {
+		if ((long) numRows * numColumns > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("A dense matrix of " + numRows + " x " + numColumns
+					+ " entries exceeds the maximum length of an array");
 		this.numRows = numRows;
 		this.numColumns = numColumns;
 
-		data = new double[numRows][numColumns];
+		data = new double[numRows * numColumns];
 	}
 
 	/**
@@ -68,14 +90,24 @@ public class DenseMatrix implements Serializable {
 		this(array.length, array[0].length);
 
 		for (int i = 0; i < numRows; i++)
-			for (int j = 0; j < numColumns; j++)
-				data[i][j] = array[i][j];
+			System.arraycopy(array[i], 0, data, i * numColumns, numColumns);
 	}
 
 	/**
-	 * Construct a dense matrix by a shallow copy of a data array
+	 * Construct a dense matrix by copying the first {@code numRows x numColumns} entries of a data array
 	 */
 	public DenseMatrix(double[][] array, int numRows, int numColumns) {
+		this(numRows, numColumns);
+
+		for (int i = 0; i < numRows; i++)
+			System.arraycopy(array[i], 0, data, i * numColumns, Math.min(numColumns, array[i].length));
+	}
+
+	/**
+	 * Construct a dense matrix by a shallow copy of a row-major data array
+	 */
+	public DenseMatrix(double[] array, int numRows, int numColumns) {
+		assert array.length >= numRows * numColumns;
 		this.numRows = numRows;
 		this.numColumns = numColumns;
 
@@ -89,7 +121,7 @@ public class DenseMatrix implements Serializable {
 	 *            input matrix
 	 */
 	public DenseMatrix(DenseMatrix mat) {
-		this(mat.data);
+		this(mat.data.clone(), mat.numRows, mat.numColumns);
 	}
 
 	/**
@@ -123,7 +155,7 @@ public class DenseMatrix implements Serializable {
 	public void init(double mean, double sigma) {
 		for (int i = 0; i < numRows; i++)
 			for (int j = 0; j < numColumns; j++)
-				data[i][j] = Randoms.gaussian(mean, sigma);
+				data[i * numColumns + j] = Randoms.gaussian(mean, sigma);
 	}
 
 	/**
@@ -133,13 +165,13 @@ public class DenseMatrix implements Serializable {
 
 		for (int i = 0; i < numRows; i++)
 			for (int j = 0; j < numColumns; j++)
-				data[i][j] = Randoms.uniform(0, range);
+				data[i * numColumns + j] = Randoms.uniform(0, range);
 	}
 	public void initmm(double min ,double max) {
 
 		for (int i = 0; i < numRows; i++)
 			for (int j = 0; j < numColumns; j++)
-				data[i][j] = Randoms.uniform(0, max);
+				data[i * numColumns + j] = Randoms.uniform(0, max);
 	}
 
 	/**
@@ -181,7 +213,34 @@ public class DenseMatrix implements Serializable {
 	 * @return a vector of a specific row
 	 */
 	public DenseVector row(int rowId, boolean deep) {
-		return new DenseVector(data[rowId], deep);
+		DenseVector view = new DenseVector(data, rowId * numColumns, numColumns);
+		return deep ? view.clone() : view;
+	}
+
+	/**
+	 * @return the row-major array of entries, e.g., to access rows in bulk from {@code rowOffset(row)}
+	 */
+	public double[] getData() {
+		return data;
+	}
+
+	/**
+	 * @param row
+	 *            row id
+	 * @return the position of the first entry of a row in {@code getData()}
+	 */
+	public int rowOffset(int row) {
+		return row * numColumns;
+	}
+
+	/**
+	 * @return a copy of the entries as a two-dimensional array
+	 */
+	public double[][] toArray() {
+		double[][] array = new double[numRows][numColumns];
+		for (int i = 0; i < numRows; i++)
+			System.arraycopy(data, i * numColumns, array[i], 0, numColumns);
+		return array;
 	}
 
 	/**
@@ -193,7 +252,7 @@ public class DenseMatrix implements Serializable {
 		DenseVector vec = new DenseVector(numRows);
 
 		for (int i = 0; i < numRows; i++)
-			vec.set(i, data[i][column]);
+			vec.set(i, data[i * numColumns + column]);
 
 		return vec;
 	}
@@ -209,7 +268,7 @@ public class DenseMatrix implements Serializable {
 		double sum = 0.0;
 
 		for (int i = 0; i < numRows; i++)
-			sum += data[i][column];
+			sum += data[i * numColumns + column];
 
 		return sum / numRows;
 	}
@@ -220,9 +279,8 @@ public class DenseMatrix implements Serializable {
 	public double norm() {
 		double res = 0;
 
-		for (int i = 0; i < numRows; i++)
-			for (int j = 0; j < numColumns; j++)
-				res += data[i][j] * data[i][j];
+		for (int i = 0, n = numRows * numColumns; i < n; i++)
+			res += data[i] * data[i];
 
 		return Math.sqrt(res);
 	}
@@ -243,11 +301,8 @@ public class DenseMatrix implements Serializable {
 	public static double rowMult(DenseMatrix m, int mrow, DenseMatrix n, int nrow) {
 		assert m.numColumns == n.numColumns;
 
-		double res = 0;
-		for (int j = 0, k = m.numColumns; j < k; j++)
-			res += m.get(mrow, j) * n.get(nrow, j);
-
-		return res;
+		int k = m.numColumns;
+		return Blas.dot(k, m.data, mrow * k, n.data, nrow * k);
 	}
 
 	/**
@@ -361,76 +416,178 @@ public class DenseMatrix implements Serializable {
 	}
 
 	/**
-	 * @return the result of {@code A^T A}
+	 * @return the result of {@code A^T A}, computed as {@link #gram(ExecutorService)} in the current thread
 	 */
 	public DenseMatrix transMult() {
-		DenseMatrix res = new DenseMatrix(numColumns, numColumns);
+		int[] bounds = gramChunks();
+		double[][] partials = new double[bounds.length - 1][];
+		for (int c = 0; c < partials.length; c++)
+			partials[c] = syrkRows(bounds[c], bounds[c + 1]);
+
+		return reduceGram(partials);
+	}
 
-		for (int i = 0; i < numColumns; i++) {
-			// inner product of row i and row k
-			for (int k = 0; k < numColumns; k++) {
+	/**
+	 * @return the partial Gram matrix of rows [from, to), i.e., the sum of their outer products, so that the partial
+	 *         Grams of a split of the rows add up to {@code A^T A}
+	 */
+	public DenseMatrix gram(int from, int to) {
+		return reduceGram(new double[][] { syrkRows(from, to) });
+	}
 
-				double val = 0;
-				for (int j = 0; j < numRows; j++) {
-					val += get(j, i) * get(j, k);
+	/**
+	 * Gram matrix {@code A^T A} in the way of SYRK: only the upper triangle is computed, as the sum of the outer
+	 * products of the rows, and then mirrored. Rows are split into a fixed number of chunks, each of which is summed
+	 * up into its own partial Gram by a task of the executor, block by block of rows for cache reuse; the partial
+	 * Grams are then reduced in the order of the chunks. Hence the result is the same for any number of threads, and
+	 * the same as {@link #transMult()}.
+	 * 
+	 * @param executor
+	 *            executor of the chunks, or null to run in the current thread
+	 * @return the result of {@code A^T A}
+	 */
+	public DenseMatrix gram(ExecutorService executor) throws Exception {
+		final int[] bounds = gramChunks();
+		if (executor == null || bounds.length <= 2)
+			return transMult();
+
+		List<Callable<double[]>> tasks = new ArrayList<>(bounds.length - 1);
+		for (int c = 0; c < bounds.length - 1; c++) {
+			final int from = bounds[c], to = bounds[c + 1];
+			tasks.add(new Callable<double[]>() {
+				@Override
+				public double[] call() {
+					return syrkRows(from, to);
 				}
+			});
+		}
 
-				res.set(i, k, val);
-			}
+		List<Future<double[]>> futures = executor.invokeAll(tasks);
+		double[][] partials = new double[futures.size()][];
+		for (int c = 0; c < partials.length; c++)
+			partials[c] = futures.get(c).get();
+
+		return reduceGram(partials);
+	}
+
+	/**
+	 * @return bounds of the chunks of rows of a Gram matrix, chunk c being rows [bounds[c], bounds[c + 1])
+	 */
+	private int[] gramChunks() {
+		long entries = Math.max(1L, (long) numColumns * numColumns);
+		int chunks = (int) Math.max(1, Math.min(Math.min(GRAM_CHUNKS, numRows / GRAM_MIN_ROWS), GRAM_MAX_ENTRIES
+				/ entries));
+
+		int[] bounds = new int[chunks + 1];
+		for (int c = 0; c <= chunks; c++)
+			bounds[c] = (int) ((long) numRows * c / chunks);
+		return bounds;
+	}
+
+	/**
+	 * @return upper triangle of the partial Gram matrix of rows [from, to), in the row-major order
+	 */
+	private double[] syrkRows(int from, int to) {
+		int k = numColumns;
+		double[] g = new double[k * k];
+		int block = Math.max(1, BLOCK_BYTES / 8 / Math.max(1, k));
+		for (int start = from; start < to; start += block) {
+			int end = Math.min(to, start + block);
+			// row i of the Gram stays in the L1 cache while it is updated by the rows of the block
+			for (int i = 0; i < k; i++)
+				for (int r = start, o = start * k; r < end; r++, o += k)
+					Blas.axpy(k - i, data[o + i], data, o + i, g, i * k + i);
 		}
+		return g;
+	}
+
+	/**
+	 * @return sum of the partial Gram matrices, with the upper triangle mirrored to the lower one
+	 */
+	private DenseMatrix reduceGram(double[][] partials) {
+		int k = numColumns;
+		double[] g = partials[0];
+		for (int c = 1; c < partials.length; c++)
+			for (int i = 0; i < k; i++)
+				Blas.axpy(k - i, 1.0, partials[c], i * k + i, g, i * k + i);
+		DenseMatrix res = new DenseMatrix(g, k, k);
+		res.mirrorUpper();
 
 		return res;
 	}
+
+	/**
+	 * @return the result of {@code A^T B}
+	 */
 	public DenseMatrix transMult(DenseMatrix mat) {
 		assert this.numRows == mat.numRows;
+
 		DenseMatrix res = new DenseMatrix(this.numColumns, mat.numColumns);
+		gemm(data, 1, numColumns, numRows, mat, res, 0, res.numRows);
 
-		for (int i = 0; i <res.numRows; i++) {
-			// inner product of row i and row k
-			for (int k = 0; k < res.numColumns; k++) {
-				double val = 0;
-				for (int j = 0; j < this.numRows; j++) {
-					val += get(j, i) * mat.get(j, k);
-				}
-				res.set(i, k, val);
+		return res;
+	}
+
+	/**
+	 * Parallel version of {@link #transMult(DenseMatrix)}, with the same results
+	 * 
+	 * @param executor
+	 *            executor of the tiles of the result, or null to run in the current thread
+	 */
+	public DenseMatrix transMult(final DenseMatrix mat, ExecutorService executor) throws Exception {
+		assert this.numRows == mat.numRows;
+
+		final DenseMatrix res = new DenseMatrix(this.numColumns, mat.numColumns);
+		forEachTile(res.numRows, new Tile() {
+			@Override
+			public void compute(int from, int to) {
+				gemm(data, 1, numColumns, numRows, mat, res, from, to);
 			}
-		}
+		}, executor);
 
 		return res;
 	}
+
+	/**
+	 * @return the result of {@code A A^T}
+	 */
 	public DenseMatrix multTrans() {
 		DenseMatrix res = new DenseMatrix(numRows, numRows);
+		syrk(res, 0, numRows);
+		res.mirrorUpper();
 
-		for (int i = 0; i < numRows; i++) {
-			// inner product of row i and row k
-			for (int k = 0; k < numRows; k++) {
-				double val = 0;
-				for (int j = 0; j < numColumns; j++) {
-					val += get(i, j) * get(k, j);
-				}
-				res.set(i, k, val);
+		return res;
+	}
+
+	/**
+	 * Parallel version of {@link #multTrans()}, with the same results
+	 * 
+	 * @param executor
+	 *            executor of the tiles of the result, or null to run in the current thread
+	 */
+	public DenseMatrix multTrans(ExecutorService executor) throws Exception {
+		final DenseMatrix res = new DenseMatrix(numRows, numRows);
+		forEachTile(numRows, new Tile() {
+			@Override
+			public void compute(int from, int to) {
+				syrk(res, from, to);
 			}
-		}
+		}, executor);
+		res.mirrorUpper();
 
 		return res;
 	}
-	public DenseMatrix multTrans(double scale) {
-		DenseMatrix res = new DenseMatrix(numRows, numRows);
 
-		for (int i = 0; i < numRows; i++) {
-			// inner product of row i and row k
-			for (int k = 0; k < numRows; k++) {
-				double val = 0;
-				for (int j = 0; j < numColumns; j++) {
-					val += get(i, j) * get(k, j);
-				}
-				res.set(i, k, val*scale);
-			}
-		}
+	/**
+	 * @return the result of {@code scale * A A^T}
+	 */
+	public DenseMatrix multTrans(double scale) {
+		DenseMatrix res = multTrans();
+		Blas.scal(res.data.length, scale, res.data, 0);
 
 		return res;
 	}
-	
+
 	/**
 	 * Matrix multiplication with a dense matrix
 	 * 
@@ -442,20 +599,116 @@ public class DenseMatrix implements Serializable {
 		assert this.numColumns == mat.numRows;
 
 		DenseMatrix res = new DenseMatrix(this.numRows, mat.numColumns);
-		for (int i = 0; i < res.numRows; i++) {
-			for (int j = 0; j < res.numColumns; j++) {
+		gemm(data, numColumns, 1, numColumns, mat, res, 0, res.numRows);
+
+		return res;
+	}
 
-				double product = 0;
-				for (int k = 0; k < this.numColumns; k++)
-					product += data[i][k] * mat.data[k][j];
+	/**
+	 * Parallel version of {@link #mult(DenseMatrix)}, with the same results
+	 * 
+	 * @param executor
+	 *            executor of the tiles of the result, or null to run in the current thread
+	 */
+	public DenseMatrix mult(final DenseMatrix mat, ExecutorService executor) throws Exception {
+		assert this.numColumns == mat.numRows;
 
-				res.set(i, j, product);
+		final DenseMatrix res = new DenseMatrix(this.numRows, mat.numColumns);
+		forEachTile(res.numRows, new Tile() {
+			@Override
+			public void compute(int from, int to) {
+				gemm(data, numColumns, 1, numColumns, mat, res, from, to);
 			}
-		}
+		}, executor);
 
 		return res;
 	}
 
+	/**
+	 * Computation of the rows (or columns) [from, to) of a result matrix
+	 */
+	private interface Tile {
+		void compute(int from, int to);
+	}
+
+	/**
+	 * Split the rows (or columns) of a result matrix into a fixed number of tiles, and compute them by the tasks of an
+	 * executor
+	 */
+	private static void forEachTile(int size, final Tile tile, ExecutorService executor) throws Exception {
+		int tiles = Math.min(GEMM_TILES, size);
+		if (executor == null || tiles <= 1) {
+			tile.compute(0, size);
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<>(tiles);
+		for (int t = 0; t < tiles; t++) {
+			final int from = (int) ((long) size * t / tiles), to = (int) ((long) size * (t + 1) / tiles);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					tile.compute(from, to);
+					return null;
+				}
+			});
+		}
+
+		// propagate exceptions of the tasks
+		for (Future<Void> future : executor.invokeAll(tasks))
+			future.get();
+	}
+
+	/**
+	 * Rows [from, to) of {@code C = A' B}, where entry (i, k) of A' is {@code a[i * rs + k * cs]}, so that A' is either
+	 * a row-major matrix (rs = its number of columns, cs = 1) or the transpose of one (rs = 1, cs = number of columns
+	 * of the original). The columns of B and C are split into panels, and the rows of a B panel are streamed from the
+	 * L2 cache into each row of C by axpy; each entry of C is thus summed up in the order of k, as the textbook loop.
+	 * <p>
+	 * This is cache tiling only: B is not packed and C is not blocked in registers, so that the inner loop is the axpy
+	 * of a row slice as vectorized by the JIT, well below the peak of a packed micro-kernel.
+	 * 
+	 * @param inner
+	 *            number of columns of A', i.e., number of rows of B
+	 */
+	private static void gemm(double[] a, int rs, int cs, int inner, DenseMatrix b, DenseMatrix c, int from, int to) {
+		int n = b.numColumns;
+		double[] bd = b.data, cd = c.data;
+		int width = Math.min(n, GEMM_PANEL_WIDTH), height = Math.max(1, BLOCK_BYTES / 8 / Math.max(1, width));
+		for (int j0 = 0; j0 < n; j0 += width) {
+			int w = Math.min(width, n - j0);
+			for (int k0 = 0; k0 < inner; k0 += height) {
+				int k1 = Math.min(inner, k0 + height);
+				for (int i = from; i < to; i++)
+					for (int k = k0; k < k1; k++)
+						Blas.axpy(w, a[i * rs + k * cs], bd, k * n + j0, cd, i * n + j0);
+			}
+		}
+	}
+
+	/**
+	 * Upper triangle of the rows [from, to) of {@code C = A A^T}, by inner products of the rows of A, blocked so that
+	 * a block of rows of A stays in the L2 cache
+	 */
+	private void syrk(DenseMatrix c, int from, int to) {
+		int n = numColumns, height = Math.max(1, BLOCK_BYTES / 8 / Math.max(1, n));
+		for (int k0 = from; k0 < numRows; k0 += height) {
+			int k1 = Math.min(numRows, k0 + height);
+			for (int i = from; i < to && i < k1; i++)
+				for (int k = Math.max(i, k0); k < k1; k++)
+					c.data[i * numRows + k] = Blas.dot(n, data, i * n, data, k * n);
+		}
+	}
+
+	/**
+	 * Copy the upper triangle of a square matrix to its lower triangle
+	 */
+	private void mirrorUpper() {
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < i; j++)
+				data[i * numColumns + j] = data[j * numColumns + i];
+	}
+
 	/**
 	 * Matrix multiplication with a sparse matrix
 	 * 
@@ -467,23 +720,106 @@ public class DenseMatrix implements Serializable {
 		assert this.numColumns == mat.numRows;
 
 		DenseMatrix res = new DenseMatrix(this.numRows, mat.numColumns);
+		multSparse(mat, res, 0, res.numColumns);
+
+		return res;
+	}
+
+	/**
+	 * Parallel version of {@link #mult(SparseMatrix)}, with the same results
+	 * 
+	 * @param executor
+	 *            executor of the tiles of columns of the result, or null to run in the current thread
+	 */
+	public DenseMatrix mult(final SparseMatrix mat, ExecutorService executor) throws Exception {
+		assert this.numColumns == mat.numRows;
+
+		final DenseMatrix res = new DenseMatrix(this.numRows, mat.numColumns);
+		forEachTile(res.numColumns, new Tile() {
+			@Override
+			public void compute(int from, int to) {
+				multSparse(mat, res, from, to);
+			}
+		}, executor);
 
-		for (int j = 0; j < res.numColumns; j++) {
-			SparseVector col = mat.column(j); // only one-time computation
+		return res;
+	}
+
+	/**
+	 * Multiplication of the transpose of the current matrix with a sparse matrix, i.e., {@code A^T S}, without
+	 * materializing {@code A^T}: column j of the result is the sum of the rows of A weighted by column j of S.
+	 * 
+	 * @param mat
+	 *            a sparse matrix
+	 * @return a dense matrix with results of {@code A^T S}
+	 */
+	public DenseMatrix transMult(SparseMatrix mat) {
+		assert this.numRows == mat.numRows;
 
-			for (int i = 0; i < res.numRows; i++) {
+		DenseMatrix res = new DenseMatrix(this.numColumns, mat.numColumns);
+		transMultSparse(mat, res, 0, res.numColumns);
 
-				double product = 0;
-				for (VectorEntry ve : col)
-					product += data[i][ve.index()] * ve.get();
+		return res;
+	}
 
-				res.set(i, j, product);
+	/**
+	 * Parallel version of {@link #transMult(SparseMatrix)}, with the same results
+	 * 
+	 * @param executor
+	 *            executor of the tiles of columns of the result, or null to run in the current thread
+	 */
+	public DenseMatrix transMult(final SparseMatrix mat, ExecutorService executor) throws Exception {
+		assert this.numRows == mat.numRows;
+
+		final DenseMatrix res = new DenseMatrix(this.numColumns, mat.numColumns);
+		forEachTile(res.numColumns, new Tile() {
+			@Override
+			public void compute(int from, int to) {
+				transMultSparse(mat, res, from, to);
 			}
-		}
+		}, executor);
 
 		return res;
 	}
 
+	/**
+	 * Columns [from, to) of {@code C = A S}, by inner products of the rows of A with the columns of S in the CCS
+	 * structure, blocked so that a block of rows of A stays in the L2 cache
+	 */
+	private void multSparse(SparseMatrix mat, DenseMatrix res, int from, int to) {
+		int[] colPtr = mat.colPtr, rowInd = mat.rowInd;
+		double[] colData = mat.colData;
+		int n = res.numColumns, height = Math.max(1, BLOCK_BYTES / 8 / Math.max(1, numColumns));
+		for (int i0 = 0; i0 < numRows; i0 += height) {
+			int i1 = Math.min(numRows, i0 + height);
+			for (int j = from; j < to; j++)
+				for (int i = i0; i < i1; i++) {
+					double product = 0;
+					for (int idx = colPtr[j], offset = i * numColumns; idx < colPtr[j + 1]; idx++)
+						product += data[offset + rowInd[idx]] * colData[idx];
+					res.data[i * n + j] = product;
+				}
+		}
+	}
+
+	/**
+	 * Columns [from, to) of {@code C = A^T S}, by adding up the rows of A weighted by the columns of S in the CCS
+	 * structure
+	 */
+	private void transMultSparse(SparseMatrix mat, DenseMatrix res, int from, int to) {
+		int[] colPtr = mat.colPtr, rowInd = mat.rowInd;
+		double[] colData = mat.colData;
+		int n = res.numColumns;
+		double[] column = new double[numColumns];
+		for (int j = from; j < to; j++) {
+			Arrays.fill(column, 0.0);
+			for (int idx = colPtr[j]; idx < colPtr[j + 1]; idx++)
+				Blas.axpy(numColumns, colData[idx], data, rowInd[idx] * numColumns, column, 0);
+			for (int i = 0; i < numColumns; i++)
+				res.data[i * n + j] = column[i];
+		}
+	}
+
 	/**
 	 * Do {@code matrix x vector} between current matrix and a given vector
 	 * 
@@ -493,8 +829,7 @@ public class DenseMatrix implements Serializable {
 		assert this.numColumns == vec.size;
 
 		DenseVector res = new DenseVector(this.numRows);
-		for (int i = 0; i < this.numRows; i++)
-			res.set(i, row(i, false).inner(vec));
+		Blas.gemv(numRows, numColumns, data, 0, numColumns, vec.data, vec.offset, res.data, 0);
 
 		return res;
 	}
@@ -505,7 +840,7 @@ public class DenseMatrix implements Serializable {
 
 			double product = 0;
 			for (VectorEntry ve : vec)
-				product += data[i][ve.index()] * ve.get();
+				product += data[i * numColumns + ve.index()] * ve.get();
 
 			res.set(i, product);
 		}
@@ -526,46 +861,63 @@ public class DenseMatrix implements Serializable {
 		assert sm.numColumns == dm.numRows;
 
 		DenseMatrix res = new DenseMatrix(sm.numRows, dm.numColumns);
+		sparseMult(sm, dm, res, 0, res.numRows);
 
-		for (int i = 0; i < res.numRows; i++) {
-			SparseVector row = sm.row(i);
-			for (int j = 0; j < res.numColumns; j++) {
+		return res;
+	}
 
-				double product = 0;
-				for (int k : row.getIndex())
-					product += row.get(k) * dm.data[k][j];
+	/**
+	 * Parallel version of {@link #mult(SparseMatrix, DenseMatrix)}, with the same results
+	 * 
+	 * @param executor
+	 *            executor of the tiles of rows of the result, or null to run in the current thread
+	 */
+	public static DenseMatrix mult(final SparseMatrix sm, final DenseMatrix dm, ExecutorService executor)
+			throws Exception {
+		assert sm.numColumns == dm.numRows;
 
-				res.set(i, j, product);
+		final DenseMatrix res = new DenseMatrix(sm.numRows, dm.numColumns);
+		forEachTile(res.numRows, new Tile() {
+			@Override
+			public void compute(int from, int to) {
+				sparseMult(sm, dm, res, from, to);
 			}
-		}
+		}, executor);
 
 		return res;
+	}
 
+	/**
+	 * Rows [from, to) of {@code C = S B}, by adding up the rows of B weighted by the rows of S in the CRS structure
+	 */
+	private static void sparseMult(SparseMatrix sm, DenseMatrix dm, DenseMatrix res, int from, int to) {
+		int[] rowPtr = sm.rowPtr, colInd = sm.colInd;
+		double[] rowData = sm.rowData;
+		int n = dm.numColumns;
+		for (int i = from; i < to; i++)
+			for (int idx = rowPtr[i]; idx < rowPtr[i + 1]; idx++)
+				Blas.axpy(n, rowData[idx], dm.data, colInd[idx] * n, res.data, i * n);
 	}
 
 	/**
 	 * Get the value at entry [row, column]
 	 */
 	public double get(int row, int column) {
-		return data[row][column];
+		return data[row * numColumns + column];
 	}
 
 	/**
 	 * Set a value to entry [row, column]
 	 */
 	public void set(int row, int column, double val) {
-		data[row][column] = val;
+		data[row * numColumns + column] = val;
 	}
 
 	/**
 	 * Set a value to all entries
 	 */
 	public void setAll(double val) {
-		for (int row = 0; row < numRows; row++) {
-			for (int col = 0; col < numColumns; col++) {
-				data[row][col] = val;
-			}
-		}
+		Arrays.fill(data, 0, numRows * numColumns, val);
 	}
 
 	/**
@@ -574,7 +926,7 @@ public class DenseMatrix implements Serializable {
 	public double sumOfRow(int row) {
 		double res = 0;
 		for (int col = 0; col < numColumns; col++)
-			res += data[row][col];
+			res += data[row * numColumns + col];
 
 		return res;
 	}
@@ -585,7 +937,7 @@ public class DenseMatrix implements Serializable {
 	public double sumOfColumn(int col) {
 		double res = 0;
 		for (int row = 0; row < numRows; row++)
-			res += data[row][col];
+			res += data[row * numColumns + col];
 
 		return res;
 	}
@@ -597,7 +949,7 @@ public class DenseMatrix implements Serializable {
 		double res = 0;
 		for (int row = 0; row < numRows; row++) {
 			for (int col = 0; col < numColumns; col++) {
-				res += data[row][col];
+				res += data[row * numColumns + col];
 			}
 		}
 
@@ -608,7 +960,7 @@ public class DenseMatrix implements Serializable {
 	 * Add a value to entry [row, column]
 	 */
 	public void add(int row, int column, double val) {
-		data[row][column] += val;
+		data[row * numColumns + column] += val;
 	}
 
 	/**
@@ -616,9 +968,8 @@ public class DenseMatrix implements Serializable {
 	 */
 	public DenseMatrix scale(double val) {
 		DenseMatrix mat = new DenseMatrix(numRows, numColumns);
-		for (int i = 0; i < numRows; i++)
-			for (int j = 0; j < numColumns; j++)
-				mat.data[i][j] = this.data[i][j] * val;
+		for (int i = 0, n = numRows * numColumns; i < n; i++)
+			mat.data[i] = this.data[i] * val;
 
 		return mat;
 	}
@@ -634,9 +985,8 @@ public class DenseMatrix implements Serializable {
 
 		DenseMatrix res = new DenseMatrix(numRows, numColumns);
 
-		for (int i = 0; i < numRows; i++)
-			for (int j = 0; j < numColumns; j++)
-				res.data[i][j] = data[i][j] + mat.data[i][j];
+		for (int i = 0, n = numRows * numColumns; i < n; i++)
+			res.data[i] = data[i] + mat.data[i];
 
 		return res;
 	}
@@ -667,9 +1017,8 @@ public class DenseMatrix implements Serializable {
 
 		DenseMatrix res = new DenseMatrix(numRows, numColumns);
 
-		for (int i = 0; i < numRows; i++)
-			for (int j = 0; j < numColumns; j++)
-				res.data[i][j] = data[i][j] + val;
+		for (int i = 0, n = numRows * numColumns; i < n; i++)
+			res.data[i] = data[i] + val;
 
 		return res;
 	}
@@ -685,9 +1034,8 @@ public class DenseMatrix implements Serializable {
 
 		DenseMatrix res = new DenseMatrix(numRows, numColumns);
 
-		for (int i = 0; i < numRows; i++)
-			for (int j = 0; j < numColumns; j++)
-				res.data[i][j] = data[i][j] - mat.data[i][j];
+		for (int i = 0, n = numRows * numColumns; i < n; i++)
+			res.data[i] = data[i] - mat.data[i];
 
 		return res;
 	}
@@ -718,9 +1066,8 @@ public class DenseMatrix implements Serializable {
 
 		DenseMatrix res = new DenseMatrix(numRows, numColumns);
 
-		for (int i = 0; i < numRows; i++)
-			for (int j = 0; j < numColumns; j++)
-				res.data[i][j] = data[i][j] - val;
+		for (int i = 0, n = numRows * numColumns; i < n; i++)
+			res.data[i] = data[i] - val;
 
 		return res;
 	}
@@ -741,7 +1088,7 @@ public class DenseMatrix implements Serializable {
 				for (int k = 0; k < j; k++)
 					sum += L.get(i, k) * L.get(j, k);
 
-				double val = i == j ? Math.sqrt(data[i][i] - sum) : (data[i][j] - sum) / L.get(j, j);
+				double val = i == j ? Math.sqrt(get(i, i) - sum) : (get(i, j) - sum) / L.get(j, j);
 				L.set(i, j, val);
 			}
 			if (Double.isNaN(L.get(i, i)))
@@ -759,7 +1106,7 @@ public class DenseMatrix implements Serializable {
 
 		for (int i = 0; i < mat.numRows; i++)
 			for (int j = 0; j < mat.numColumns; j++)
-				mat.set(i, j, this.data[j][i]);
+				mat.set(i, j, this.data[j * numColumns + i]);
 
 		return mat;
 	}
@@ -768,22 +1115,38 @@ public class DenseMatrix implements Serializable {
 	 * @return a covariance matrix of the current matrix
 	 */
 	public DenseMatrix cov() {
-		DenseMatrix mat = new DenseMatrix(numColumns, numColumns);
+		DenseMatrix mat = centered().transMult();
+		Blas.scal(mat.data.length, 1.0 / (numRows - 1), mat.data, 0);
+
+		return mat;
+	}
 
-		for (int i = 0; i < numColumns; i++) {
-			DenseVector xi = this.column(i);
-			xi = xi.minus(xi.mean());
+	/**
+	 * Parallel version of {@link #cov()}, with the same results
+	 * 
+	 * @param executor
+	 *            executor of the chunks of rows, or null to run in the current thread
+	 */
+	public DenseMatrix cov(ExecutorService executor) throws Exception {
+		DenseMatrix mat = centered().gram(executor);
+		Blas.scal(mat.data.length, 1.0 / (numRows - 1), mat.data, 0);
 
-			mat.set(i, i, xi.inner(xi) / (xi.size - 1));
+		return mat;
+	}
 
-			for (int j = i + 1; j < numColumns; j++) {
-				DenseVector yi = this.column(j);
-				double val = xi.inner(yi.minus(yi.mean())) / (xi.size - 1);
+	/**
+	 * @return a copy of the current matrix with the mean of each column subtracted
+	 */
+	private DenseMatrix centered() {
+		double[] means = new double[numColumns];
+		for (int i = 0; i < numRows; i++)
+			Blas.axpy(numColumns, 1.0, data, i * numColumns, means, 0);
+		Blas.scal(numColumns, 1.0 / numRows, means, 0);
 
-				mat.set(i, j, val);
-				mat.set(j, i, val);
-			}
-		}
+		DenseMatrix mat = new DenseMatrix(numRows, numColumns);
+		for (int i = 0; i < numRows; i++)
+			for (int j = 0; j < numColumns; j++)
+				mat.data[i * numColumns + j] = data[i * numColumns + j] - means[j];
 
 		return mat;
 	}
@@ -1005,7 +1368,7 @@ public class DenseMatrix implements Serializable {
 	 *            value to be set
 	 */
 	public void setRow(int row, double val) {
-		Arrays.fill(data[row], val);
+		Arrays.fill(data, row * numColumns, (row + 1) * numColumns, val);
 	}
 
 	/**
@@ -1017,12 +1380,11 @@ public class DenseMatrix implements Serializable {
 	 *            values of a dense vector
 	 */
 	public void setRow(int row, DenseVector vals) {
-		for (int j = 0; j < numColumns; j++)
-			data[row][j] = vals.data[j];
+		System.arraycopy(vals.data, vals.offset, data, row * numColumns, numColumns);
 	}
 	public void setColumn(int column, DenseVector vals) {
 		for (int i = 0; i < numRows; i++)
-			data[i][column] = vals.data[i];
+			data[i * numColumns + column] = vals.data[vals.offset + i];
 	}
 	/**
 	 * clear and reset all entries to 0
@@ -1032,9 +1394,37 @@ public class DenseMatrix implements Serializable {
 			setRow(i, 0.0);
 	}
 
+	/**
+	 * Write the matrix in a binary format: number of rows, number of columns and then row-major data
+	 * 
+	 * @param out
+	 *            data output
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(numRows);
+		out.writeInt(numColumns);
+		for (int i = 0, n = numRows * numColumns; i < n; i++)
+			out.writeDouble(data[i]);
+	}
+
+	/**
+	 * Read a matrix written by {@code write}
+	 * 
+	 * @param in
+	 *            data input
+	 * @return a dense matrix
+	 */
+	public static DenseMatrix read(DataInput in) throws IOException {
+		DenseMatrix mat = new DenseMatrix(in.readInt(), in.readInt());
+		for (int i = 0, n = mat.numRows * mat.numColumns; i < n; i++)
+			mat.data[i] = in.readDouble();
+
+		return mat;
+	}
+
 	@Override
 	public String toString() {
-		return Strings.toString(data);
+		return Strings.toString(toArray());
 	}
 
 }
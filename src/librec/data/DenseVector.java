@@ -19,9 +19,9 @@
 package librec.data;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import librec.util.Randoms;
-import librec.util.Stats;
 import librec.util.Strings;
 
 /**
@@ -36,6 +36,8 @@ public class DenseVector implements Serializable {
 
 	protected int size;
 	protected double[] data;
+	// position of the first entry in data, which is non-zero for a view of a matrix row
+	protected int offset;
 
 	/**
 	 * Construct a dense vector with a specific size
@@ -74,11 +76,28 @@ public class DenseVector implements Serializable {
 		}
 	}
 
+	/**
+	 * Construct a dense vector as a view of a range of a given array, without copying
+	 * 
+	 * @param array
+	 *            a given data array
+	 * @param offset
+	 *            position of the first entry in the array
+	 * @param size
+	 *            the size of vector
+	 */
+	public DenseVector(double[] array, int offset, int size) {
+		this.data = array;
+		this.offset = offset;
+		this.size = size;
+	}
+
 	/**
 	 * Construct a dense vector by deeply copying data from a given vector
 	 */
 	public DenseVector(DenseVector vec) {
-		this(vec.data);
+		this(vec.size);
+		System.arraycopy(vec.data, vec.offset, data, 0, size);
 	}
 
 	/**
@@ -93,7 +112,7 @@ public class DenseVector implements Serializable {
 	 */
 	public void init(double mean, double sigma) {
 		for (int i = 0; i < size; i++)
-			data[i] = Randoms.gaussian(mean, sigma);
+			data[offset + i] = Randoms.gaussian(mean, sigma);
 	}
 
 	/**
@@ -101,7 +120,7 @@ public class DenseVector implements Serializable {
 	 */
 	public void init() {
 		for (int i = 0; i < size; i++)
-			data[i] = Randoms.uniform();
+			data[offset + i] = Randoms.uniform();
 	}
 
 	/**
@@ -109,42 +128,61 @@ public class DenseVector implements Serializable {
 	 */
 	public void init(double range) {
 		for (int i = 0; i < size; i++)
-			data[i] = Randoms.uniform(0, range);
+			data[offset + i] = Randoms.uniform(0, range);
 	}
 
 	/**
 	 * Get a value at entry [index]
 	 */
 	public double get(int idx) {
-		return data[idx];
+		return data[offset + idx];
 	}
 
 	/**
-	 * @return vector's data
+	 * @return vector's data, which is a copy if the vector is a view of a range of a larger array
 	 */
 	public double[] getData() {
+		if (offset == 0 && data.length == size)
+			return data;
+		return Arrays.copyOfRange(data, offset, offset + size);
+	}
+
+	/**
+	 * @return the array holding the entries, starting at {@code offset()}
+	 */
+	public double[] array() {
 		return data;
 	}
 
+	/**
+	 * @return position of the first entry in {@code array()}
+	 */
+	public int offset() {
+		return offset;
+	}
+
 	/**
 	 * @return mean of current vector
 	 */
 	public double mean() {
-		return Stats.mean(data);
+		return sum() / size;
 	}
 
 	/**
 	 * @return summation of entries
 	 */
 	public double sum() {
-		return Stats.sum(data);
+		double res = 0;
+		for (int i = 0; i < size; i++)
+			res += data[offset + i];
+		return res;
 	}
 
 	/**
 	 * Set a value to entry [index]
 	 */
 	public void set(int idx, double val) {
-		data[idx] = val;
+		data[offset + idx] = val;
 	}
 
 	/**
@@ -152,28 +190,28 @@ public class DenseVector implements Serializable {
 	 */
 	public void setAll(double val) {
 		for (int i = 0; i < size; i++)
-			data[i] = val;
+			data[offset + i] = val;
 	}
 
 	/**
 	 * Add a value to entry [index]
 	 */
 	public void add(int idx, double val) {
-		data[idx] += val;
+		data[offset + idx] += val;
 	}
 
 	/**
 	 * Substract a value from entry [index]
 	 */
 	public void minus(int idx, double val) {
-		data[idx] -= val;
+		data[offset + idx] -= val;
 	}
 	
 	public DenseVector log(){
 		DenseVector result = new DenseVector(size);
 		
 		for (int i = 0; i < size; i++)
-			result.data[i] = Math.log(this.data[i]);
+			result.data[i] = Math.log(this.data[offset + i]);
 		
 		return result;
 	}
@@ -185,7 +223,7 @@ public class DenseVector implements Serializable {
 		DenseVector result = new DenseVector(size);
 
 		for (int i = 0; i < size; i++)
-			result.data[i] = this.data[i] + val;
+			result.data[i] = this.data[offset + i] + val;
 
 		return result;
 	}
@@ -198,7 +236,7 @@ public class DenseVector implements Serializable {
 		DenseVector result = new DenseVector(size);
 
 		for (int i = 0; i < size; i++)
-			result.data[i] = this.data[i] - val;
+			result.data[i] = this.data[offset + i] - val;
 
 		return result;
 	}
@@ -210,7 +248,7 @@ public class DenseVector implements Serializable {
 
 		DenseVector result = new DenseVector(size);
 		for (int i = 0; i < size; i++)
-			result.data[i] = this.data[i] * val;
+			result.data[i] = this.data[offset + i] * val;
 
 		return result;
 	}
@@ -225,7 +263,7 @@ public class DenseVector implements Serializable {
 
 		DenseVector result = new DenseVector(size);
 		for (int i = 0; i < result.size; i++)
-			result.data[i] = this.data[i] + vec.data[i];
+			result.data[i] = this.data[offset + i] + vec.data[vec.offset + i];
 
 		return result;
 	}
@@ -240,7 +278,7 @@ public class DenseVector implements Serializable {
 
 		DenseVector result = new DenseVector(size);
 		for (int i = 0; i < vec.size; i++)
-			result.data[i] = this.data[i] - vec.data[i];
+			result.data[i] = this.data[offset + i] - vec.data[vec.offset + i];
 
 		return result;
 	}
@@ -249,7 +287,7 @@ public class DenseVector implements Serializable {
 		double s = sum();
 		assert s != 0;
 		for ( int i = 0; i < size; i++)
-			this.data[i] /= s;
+			this.data[offset + i] /= s;
 	}
 
 	/**
@@ -260,11 +298,7 @@ public class DenseVector implements Serializable {
 	public double inner(DenseVector vec) {
 		assert size == vec.size;
 
-		double result = 0;
-		for (int i = 0; i < vec.size; i++)
-			result += get(i) * vec.get(i);
-
-		return result;
+		return Blas.dot(size, data, offset, vec.data, vec.offset);
 	}
 
 	/**
@@ -322,7 +356,7 @@ public class DenseVector implements Serializable {
 
 	@Override
 	public String toString() {
-		return Strings.toString(data);
+		return Strings.toString(getData());
 	}
 
 }
\ No newline at end of file
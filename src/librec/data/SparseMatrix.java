@@ -90,6 +90,102 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		construct(dataTable, colMap);
 	}
 
+	/**
+	 * Construct a sparse matrix with both CRS and CCS structures from entries in the coordinate (COO) format, by
+	 * counting sort in linear time. Entries may come in any order; a duplicated entry overwrites the earlier ones, as
+	 * in a table. Unlike the other constructors, the set of values is not collected.
+	 *
+	 * @param rows    number of rows
+	 * @param cols    number of columns
+	 * @param rowIdx  row indices of the entries
+	 * @param colIdx  column indices of the entries
+	 * @param data    values of the entries
+	 * @param size    number of entries, i.e., the used length of the arrays
+	 */
+	public SparseMatrix(int rows, int cols, int[] rowIdx, int[] colIdx, double[] data, int size) {
+		numRows = rows;
+		numColumns = cols;
+		valueSet = new TreeSet<>();
+
+		// COO -> CCS, with rows in the order of the entries
+		int[] ptr = new int[numColumns + 1];
+		for (int n = 0; n < size; n++) {
+			if (colIdx[n] < 0 || colIdx[n] >= numColumns)
+				throw new IllegalArgumentException("colInd[" + n + "]=" + colIdx[n]
+						+ ", which is not a valid column index");
+			if (rowIdx[n] < 0 || rowIdx[n] >= numRows)
+				throw new IllegalArgumentException("rowInd[" + n + "]=" + rowIdx[n] + ", which is not a valid row index");
+			ptr[colIdx[n] + 1]++;
+		}
+		for (int j = 0; j < numColumns; j++)
+			ptr[j + 1] += ptr[j];
+		int[] next = Arrays.copyOf(ptr, numColumns);
+		int[] idx = new int[size];
+		double[] vals = new double[size];
+		for (int n = 0; n < size; n++) {
+			int pos = next[colIdx[n]]++;
+			idx[pos] = rowIdx[n];
+			vals[pos] = data[n];
+		}
+
+		// CCS -> CRS, visiting the columns in order so that the columns of each row are sorted
+		rowPtr = new int[numRows + 1];
+		colInd = new int[size];
+		rowData = new double[size];
+		for (int n = 0; n < size; n++)
+			rowPtr[idx[n] + 1]++;
+		for (int i = 0; i < numRows; i++)
+			rowPtr[i + 1] += rowPtr[i];
+		next = Arrays.copyOf(rowPtr, numRows);
+		for (int j = 0; j < numColumns; j++) {
+			for (int n = ptr[j]; n < ptr[j + 1]; n++) {
+				int pos = next[idx[n]]++;
+				colInd[pos] = j;
+				rowData[pos] = vals[n];
+			}
+		}
+
+		// merge duplicated entries, which are adjacent in a row in the order of the entries, keeping the last value
+		int nnz = 0;
+		for (int i = 0; i < numRows; i++) {
+			int start = rowPtr[i], end = rowPtr[i + 1];
+			rowPtr[i] = nnz;
+			for (int n = start; n < end; n++) {
+				if (nnz > rowPtr[i] && colInd[nnz - 1] == colInd[n]) {
+					rowData[nnz - 1] = rowData[n];
+				} else {
+					colInd[nnz] = colInd[n];
+					rowData[nnz++] = rowData[n];
+				}
+			}
+		}
+		rowPtr[numRows] = nnz;
+		if (nnz < size) {
+			colInd = Arrays.copyOf(colInd, nnz);
+			rowData = Arrays.copyOf(rowData, nnz);
+			Arrays.fill(ptr, 0);
+			for (int n = 0; n < nnz; n++)
+				ptr[colInd[n] + 1]++;
+			for (int j = 0; j < numColumns; j++)
+				ptr[j + 1] += ptr[j];
+			idx = new int[nnz];
+			vals = new double[nnz];
+		}
+
+		// CRS -> CCS, visiting the rows in order so that the rows of each column are sorted
+		colPtr = ptr;
+		rowInd = idx;
+		colData = vals;
+		next = Arrays.copyOf(colPtr, numColumns);
+		for (int i = 0; i < numRows; i++) {
+			for (int n = rowPtr[i]; n < rowPtr[i + 1]; n++) {
+				int pos = next[colInd[n]]++;
+				rowInd[pos] = i;
+				colData[pos] = rowData[n];
+			}
+		}
+	}
+
 	/**
 	 * Construct a sparse matrix from another sparse matrix
 	 *
@@ -188,6 +284,13 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		return colInd;
 	}
 
+	/**
+	 * @return the column pointers of CCS structure
+	 */
+	public int[] getColumnPointers() {
+		return colPtr;
+	}
+
 	/**
 	 * @return the cardinary of current matrix
 	 */
@@ -674,6 +777,97 @@ public class SparseMatrix implements Iterable<MatrixEntry>, DataMatrix, Serializ
 		return sum() / size();
 	}
 
+	/**
+	 * @return sum of each row, in a single pass over the CRS structure
+	 */
+	public DenseVector rowSums() {
+		return new DenseVector(reduce(rowPtr, rowData, numRows, false), false);
+	}
+
+	/**
+	 * @return sum of each column, in a single pass over the CCS structure
+	 */
+	public DenseVector columnSums() {
+		return new DenseVector(reduce(colPtr, colData, numColumns, false), false);
+	}
+
+	/**
+	 * @return sum of squares of each row, i.e., its squared Euclidean norm
+	 */
+	public DenseVector rowSquaredSums() {
+		return new DenseVector(reduce(rowPtr, rowData, numRows, true), false);
+	}
+
+	/**
+	 * @return sum of squares of each column, i.e., its squared Euclidean norm
+	 */
+	public DenseVector columnSquaredSums() {
+		return new DenseVector(reduce(colPtr, colData, numColumns, true), false);
+	}
+
+	/**
+	 * @return Euclidean norm of each row
+	 */
+	public DenseVector rowNorms() {
+		double[] res = reduce(rowPtr, rowData, numRows, true);
+		for (int i = 0; i < res.length; i++)
+			res[i] = Math.sqrt(res[i]);
+		return new DenseVector(res, false);
+	}
+
+	/**
+	 * @return Euclidean norm of each column
+	 */
+	public DenseVector columnNorms() {
+		double[] res = reduce(colPtr, colData, numColumns, true);
+		for (int j = 0; j < res.length; j++)
+			res[j] = Math.sqrt(res[j]);
+		return new DenseVector(res, false);
+	}
+
+	/**
+	 * @return number of non-zero entries of each row, as {@code rowSize(row)} for all rows
+	 */
+	public int[] rowSizes() {
+		return count(rowPtr, rowData, numRows);
+	}
+
+	/**
+	 * @return number of non-zero entries of each column, as {@code columnSize(col)} for all columns
+	 */
+	public int[] columnSizes() {
+		return count(colPtr, colData, numColumns);
+	}
+
+	/**
+	 * Sum up the (squared) entries of each compressed row or column
+	 */
+	private static double[] reduce(int[] ptr, double[] data, int n, boolean square) {
+		double[] res = new double[n];
+		for (int i = 0; i < n; i++) {
+			double sum = 0;
+			for (int idx = ptr[i]; idx < ptr[i + 1]; idx++)
+				sum += square ? data[idx] * data[idx] : data[idx];
+			res[i] = sum;
+		}
+		return res;
+	}
+
+	/**
+	 * Count the non-zero entries of each compressed row or column
+	 */
+	private static int[] count(int[] ptr, double[] data, int n) {
+		int[] res = new int[n];
+		for (int i = 0; i < n; i++) {
+			int size = 0;
+			for (int idx = ptr[i]; idx < ptr[i + 1]; idx++)
+				if (data[idx] != 0.0)
+					size++;
+			res[i] = size;
+		}
+		return res;
+	}
+
 	/**
 	 * Normalize the matrix entries to (0, 1) by (x-min)/(max-min)
 	 *
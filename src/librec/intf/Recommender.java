@@ -245,6 +245,9 @@ public abstract class Recommender implements Runnable {
                 isSaveModel = outputOptions.contains("--save-model");
             }
 
+            if (tempDirPath == null)
+                tempDirPath = FileIO.makeDirPath(rateDao.getDataDirectory(), "Results");
+
             knn = cf.getInt("num.neighbors", 20);
             similarityMeasure = cf.getString("similarity", "PCC");
             similarityShrinkage = cf.getInt("num.shrinkage", 30);
@@ -1,23 +1,63 @@
 package librec.ranking;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Table;
 
+import librec.data.Blas;
 import librec.data.Configuration;
 import librec.data.DenseMatrix;
 import librec.data.DenseVector;
+import librec.data.MatrixEntry;
 import librec.data.SparseMatrix;
 import librec.data.SparseVector;
 import librec.data.VectorEntry;
 import librec.intf.IterativeRecommender;
 import librec.util.FileIO;
 import librec.util.Logs;
+import librec.util.Randoms;
 import librec.util.Strings;
 
 /**
@@ -35,9 +75,64 @@ public class VFPMF extends IterativeRecommender {
 	String visualfile;
 	SparseMatrix itemfeatures;
 	DenseVector D;
+	// range of positive visual features, used to normalize them
+	float visualMin, visualMax;
+	// binary cache of the visual file (null if disabled by --no-visual-cache or not writable), and the squared norms of
+	// the normalized features if they can be taken from its statistics
+	String visualCachePath;
+	DenseVector visualNorms;
 	int numvisualfactors;
-	DenseMatrix E, Z, QS;
+	// dimension of the visual file (see getVisualDimension), and the dimension to project it to (if 0 < visualDim < numrawvisualfactors) by a
+	// sparse random projection (rp) or a truncated SVD (svd)
+	int numrawvisualfactors, visualDim;
+	// whether the dimension of the visual file is declared by a header
+	boolean visualDimDeclared;
+	String projectionMethod;
+	// seed of the random projection, or of the sketch of the truncated SVD
+	long projectionSeed;
+	// projection of the raw visual features (numvisualfactors x numrawvisualfactors), or null
+	DenseMatrix visualProjection;
+	DenseMatrix E, Z;
+	// visual projection E^T F of cold-start items (numColdItems x numFactors), materialized on first use
+	volatile DenseMatrix QS;
+	// row of each item in QS, or -1 for items with training data
+	int[] coldItems;
+	// Gram caches of Q, P and Z
+	DenseMatrix Sq, Sp, Sz;
+	// visual projection E^T F (numFactors x numItems), maintained in place along with E
+	DenseMatrix ETF;
 	public SparseMatrix functionalmatrix;
+	// early stop when the relative decrease of loss stays below tolerance for patience iterations (tolerance > 0)
+	double tolerance;
+	int patience, numStalls;
+	// save training state every checkpointInterval iterations (> 0), and whether to resume from the last checkpoint
+	int checkpointInterval;
+	boolean isResume;
+	// previous model to start from, and the number of iterations of this (warm-started) run
+	String warmStartPath;
+	int maxIters;
+	// number of chunks per thread, the more the better balanced among threads
+	static final int CHUNKS_PER_THREAD = 8;
+	// solve the system of each row by a few steps of conjugate gradient instead of a coordinate descent pass
+	boolean isCG;
+	int cgSteps;
+	// Gram parts of the item and related-item systems of conjugate gradient: Sp + beta Sz and beta Sq
+	DenseMatrix Si, Sr;
+	// training engine: als (alternating least squares), sgd (Hogwild! stochastic gradient descent), dsgd
+	// (stratified stochastic gradient descent) or ps (alternating least squares over a parameter server)
+	String engine;
+	// names of the valid engines
+	static final String[] ENGINES = { "als", "sgd", "dsgd", "ps" };
+	// number of worker processes of the ps engine
+	int numWorkers;
+	// number of unobserved pairs sampled per observed pair by the sgd and dsgd engines
+	int numNegatives;
+	// passes of coordinate descent when folding in a user or an item
+	static final int FOLD_IN_SWEEPS = 5;
+	// per-row updates
+	VFPMFKernel kernel;
+	// thread pool shared by the parallel sweeps
+	ExecutorService executor;
 
 	public VFPMF(SparseMatrix trainMatrix, SparseMatrix testMatrix, int fold) throws Exception {
 		super(trainMatrix, testMatrix, fold);
@@ -46,8 +141,33 @@ public class VFPMF extends IterativeRecommender {
 		beta = algoOptions.getDouble("-beta");
 		gama = algoOptions.getDouble("-gama");
 		lamutaE = algoOptions.getDouble("-lamutaE", 1000);
-		numvisualfactors = 4096;
+		tolerance = algoOptions.getDouble("-tol", 0);
+		patience = algoOptions.getInt("-patience", 1);
+		checkpointInterval = algoOptions.getInt("-checkpoint", 0);
+		isResume = algoOptions.contains("--resume");
+		warmStartPath = algoOptions.getString("-warm-start");
+		maxIters = warmStartPath != null ? algoOptions.getInt("-warm-iters", 5) : numIters;
+		isCG = "cg".equalsIgnoreCase(algoOptions.getString("-solver"));
+		cgSteps = algoOptions.getInt("-cg-steps", 3);
+		engine = algoOptions.contains("-engine") ? algoOptions.getString("-engine").toLowerCase() : "als";
+		if (!Arrays.asList(ENGINES).contains(engine))
+			throw new IllegalArgumentException("Unknown engine: " + engine + ", expected one of "
+					+ Arrays.toString(ENGINES));
+		if (isCG && !engine.equals("als"))
+			throw new IllegalArgumentException("Solver cg is only supported by the als engine, not by " + engine);
+		numNegatives = algoOptions.getInt("-negatives", 5);
+		numWorkers = algoOptions.getInt("-ps-workers", numCPUs);
+		kernel = new VFPMFKernel(numFactors, alpha, beta, gama, regU, regI, lamutaE);
+		visualDim = algoOptions.getInt("-visual-dim", 0);
+		projectionMethod = algoOptions.contains("-projection") ? algoOptions.getString("-projection").toLowerCase()
+				: "rp";
+		if (!projectionMethod.equals("rp") && !projectionMethod.equals("svd"))
+			throw new IllegalArgumentException("Unknown projection method: " + projectionMethod);
+		projectionSeed = algoOptions.getLong("-projection-seed", 1L);
 		visualfile = cf.getPath("dataset.visual");
+		numrawvisualfactors = numvisualfactors = getVisualDimension();
+		if (!algoOptions.contains("--no-visual-cache"))
+			visualCachePath = getVisualCache();
 		functionalfile = cf.getPath("dataset.functional");
 		functionalmatrix = this.getboughttogether();
 		itemfeatures = this.getVisualFactors();
@@ -61,202 +181,1523 @@ public class VFPMF extends IterativeRecommender {
 		Z.init(0, 0.01);
 		E = new DenseMatrix(numvisualfactors, numFactors);
 		E.init(0, 0.01);
-		QS = new DenseMatrix(numFactors, numItems);
-		D = new DenseVector(numvisualfactors);
-		for (int d = 0; d < numvisualfactors; d++) {
-			for (int j = 0; j < numItems; j++) {
-				D.set(d, D.get(d) + itemfeatures.get(d, j) * itemfeatures.get(d, j));
-			}
-		}
+		if (warmStartPath != null)
+			loadWarmStart(warmStartPath);
+		ETF = E.transMult(itemfeatures);
+		D = visualNorms != null ? visualNorms : itemfeatures.rowSquaredSums();
 	}
 
 	@Override
 	protected void buildModel() throws Exception {
-		// Init caches
-		double[] prediction_users = new double[numUsers];
-		double[] prediction_items = new double[numItems];
-		double[] prediction_itemrelated = new double[numItems];
-		double[] prediction_relateditem = new double[numItems];
-		double[] w_users = new double[numUsers];
-		double[] w_items = new double[numItems];
-		double[] q_itemrelated = new double[numItems];
-		double[] q_relateditem = new double[numItems];
-
-		// Init Sq
-		DenseMatrix Sq = new DenseMatrix(numFactors, numFactors);
-		// Init Sp
-		DenseMatrix Sp, Sz;
-		for (int iter = 1; iter <= numIters; iter++) {
+		executor = Executors.newFixedThreadPool(numCPUs);
+		try {
+			if (engine.equals("sgd"))
+				iterateSGD();
+			else if (engine.equals("dsgd"))
+				iterateDSGD();
+			else if (engine.equals("ps"))
+				iterateDistributed();
+			else
+				iterate();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Alternating updates of user, item, related-item and visual factors
+	 */
+	protected void iterate() throws Exception {
+		// Init chunks and per-thread caches
+		int[] rowPtr = trainMatrix.getRowPointers(), colPtr = trainMatrix.getColumnPointers();
+		int[] relatedPtr = functionalmatrix.getRowPointers(), relatedColPtr = functionalmatrix.getColumnPointers();
+		int[] userChunks = partition(numCPUs * CHUNKS_PER_THREAD, rowPtr);
+		int[] itemChunks = partition(numCPUs * CHUNKS_PER_THREAD, colPtr, relatedPtr);
+		int[] relatedChunks = partition(numCPUs * CHUNKS_PER_THREAD, relatedColPtr);
+		UserUpdater[] userUpdaters = new UserUpdater[numCPUs];
+		ItemUpdater[] itemUpdaters = new ItemUpdater[numCPUs];
+		RelatedUpdater[] relatedUpdaters = new RelatedUpdater[numCPUs];
+		for (int t = 0; t < numCPUs; t++) {
+			userUpdaters[t] = new UserUpdater(maxSize(rowPtr));
+			itemUpdaters[t] = new ItemUpdater(maxSize(colPtr), maxSize(relatedPtr));
+			relatedUpdaters[t] = new RelatedUpdater(maxSize(relatedColPtr));
+		}
+
+		int startIter = firstIteration();
+
+		// Init the Sq and Sz caches, which stay up to date at the end of each iteration
+		Sq = Q.gram(executor);
+		Sz = Z.gram(executor);
+		for (int iter = startIter; iter <= maxIters; iter++) {
 			Logs.debug("{}{} runs at iteration = {} {}", algoName, foldInfo, iter, new Date());
-			// Update the Sq cache
-			Sq = Q.transMult();
 			// Step 1: update user factors;
-			for (int u = 0; u < numUsers; u++) {
-				SparseVector row = trainMatrix.row(u);
-				for (VectorEntry entry : row) {
-					int i = entry.index();
-					prediction_items[i] = DenseMatrix.rowMult(P, u, Q, i);
-					w_items[i] = 1.0 + alpha * entry.get();
-				}
+			sweep(userChunks, userUpdaters);
+			// Update the Sp cache
+			Sp = P.gram(executor);
+			if (isCG)
+				Si = Sp.add(Sz.scale(beta));
+
+			// Step 2: update item factors;
+			sweep(itemChunks, itemUpdaters);
+			Sq = Q.gram(executor);
+			if (isCG)
+				Sr = Sq.scale(beta);
+			// Step 3: update Z factors;
+			sweep(relatedChunks, relatedUpdaters);
+			Sz = Z.gram(executor);
+
+			// Step 4: update visual factors, which keeps ETF up to date with E;
+			updateVisualFactors(ETF);
+
+			if (endIteration(iter))
+				break;
+		}
+	}
+
+	/**
+	 * Hogwild! training of the same objective: lock-free parallel SGD over (user, item) pairs, (item, related) pairs
+	 * and the (feature, item) entries of each item, where each observed pair comes with {@code numNegatives} sampled
+	 * unobserved ones, weighted to estimate the sum over all unobserved pairs without bias (see {@link #sgdRow}). Each
+	 * row is regularized once per epoch, and the steps are taken in their implicit form, which keeps them stable under
+	 * the heavy weights of negatives and of gama; a learn.rate around 0.01 is a good start.
+	 * The learning rate starts from learn.rate and is adapted by its -bold-driver or -decay option.
+	 */
+	protected void iterateSGD() throws Exception {
+		if (lRate <= 0)
+			throw new IllegalArgumentException("VFPMF -engine sgd requires a positive learn.rate");
+
+		// Init chunks and per-thread samplers
+		int[] rowPtr = trainMatrix.getRowPointers();
+		int[] relatedPtr = functionalmatrix.getRowPointers(), featurePtr = itemfeatures.getColumnPointers();
+		int[] userChunks = partition(numCPUs * CHUNKS_PER_THREAD, rowPtr);
+		int[] itemChunks = partition(numCPUs * CHUNKS_PER_THREAD, relatedPtr);
+		int[] visualChunks = partition(numCPUs * CHUNKS_PER_THREAD, featurePtr);
+		RowUpdater[] userUpdaters = new RowUpdater[numCPUs];
+		RowUpdater[] itemUpdaters = new RowUpdater[numCPUs];
+		RowUpdater[] visualUpdaters = new RowUpdater[numCPUs];
+		// samplers of the threads, seeded from the random generator in each iteration (after it is restored from a
+		// checkpoint), so that a resumed run draws the same samples as an uninterrupted one
+		Random[] userSamplers = new Random[numCPUs], itemSamplers = new Random[numCPUs];
+		for (int t = 0; t < numCPUs; t++) {
+			userSamplers[t] = new Random();
+			itemSamplers[t] = new Random();
+			userUpdaters[t] = new UserSGDUpdater(userSamplers[t]);
+			itemUpdaters[t] = new ItemSGDUpdater(itemSamplers[t]);
+			visualUpdaters[t] = new VisualSGDUpdater();
+		}
+
+		int startIter = firstIteration();
+		for (int iter = startIter; iter <= maxIters; iter++) {
+			Logs.debug("{}{} runs at iteration = {} {}", algoName, foldInfo, iter, new Date());
+			for (int t = 0; t < numCPUs; t++) {
+				userSamplers[t].setSeed(Randoms.getGenerator().nextLong());
+				itemSamplers[t].setSeed(Randoms.getGenerator().nextLong());
+			}
+			sweep(userChunks, userUpdaters);
+			sweep(itemChunks, itemUpdaters);
+			sweep(visualChunks, visualUpdaters);
+			ETF = E.transMult(itemfeatures, executor);
+
+			// Gram caches for the loss
+			Sp = P.gram(executor);
+			Sq = Q.gram(executor);
+			Sz = Z.gram(executor);
+
+			if (endIteration(iter))
+				break;
+		}
+	}
+
+	/**
+	 * DSGD training of the same objective (Gemulla et al., Large-scale matrix factorization with distributed stochastic
+	 * gradient descent, KDD 2011): the (user, item) and (item, related) matrices are split into p x p grids of blocks
+	 * with balanced numbers of entries, where p is the number of threads. In each sub-epoch, p blocks sharing no row or
+	 * column are processed concurrently, and each block draws its negatives from its own seeded generator, so that the
+	 * results only depend on the random seed and p. The visual projection E is updated by the closed-form E-step of
+	 * ALS.
+	 */
+	protected void iterateDSGD() throws Exception {
+		if (lRate <= 0)
+			throw new IllegalArgumentException("VFPMF -engine dsgd requires a positive learn.rate");
+		// resume before the updaters below take hold of the factor matrices
+		int startIter = firstIteration();
+
+		// Init the grids: the blocks of a stratum are the rows of a sweep, one chunk each
+		int p = numCPUs;
+		int[] userBounds = balancedSplit(trainMatrix.getRowPointers(), p);
+		int[] itemBounds = balancedSplit(trainMatrix.getColumnPointers(), p);
+		int[] relatingBounds = balancedSplit(functionalmatrix.getRowPointers(), p);
+		int[] relatedBounds = balancedSplit(functionalmatrix.getColumnPointers(), p);
+		// Q is regularized along with the related pairs, where it takes the place of X
+		StratumUpdater ratingUpdater = new StratumUpdater(trainMatrix, P, Q, userBounds, itemBounds, 1.0, regU, 0);
+		StratumUpdater relatedUpdater = new StratumUpdater(functionalmatrix, Q, Z, relatingBounds, relatedBounds, beta,
+				regI, regI);
+		RowUpdater[] ratingUpdaters = new RowUpdater[numCPUs], relatedUpdaters = new RowUpdater[numCPUs];
+		Arrays.fill(ratingUpdaters, ratingUpdater);
+		Arrays.fill(relatedUpdaters, relatedUpdater);
+		int[] blocks = new int[2 * p];
+		for (int b = 0; b < p; b++) {
+			blocks[2 * b] = b;
+			blocks[2 * b + 1] = b + 1;
+		}
+		int[] itemChunks = partition(numCPUs * CHUNKS_PER_THREAD, trainMatrix.getColumnPointers());
+		RowUpdater[] visualUpdaters = new RowUpdater[numCPUs];
+		Arrays.fill(visualUpdaters, new RowUpdater() {
+
+			@Override
+			public void update(int i) {
+				double step = lRate * gama / (1 + lRate * gama);
 				for (int f = 0; f < numFactors; f++) {
-					double numer = 0, denom = regU + Sq.get(f, f);
+					double qif = Q.get(i, f);
+					Q.set(i, f, qif - step * (qif - ETF.get(f, i)));
+				}
+			}
+		});
+
+		for (int iter = startIter; iter <= maxIters; iter++) {
+			Logs.debug("{}{} runs at iteration = {} {}", algoName, foldInfo, iter, new Date());
+			for (int s = 0; s < p; s++) {
+				ratingUpdater.setStratum(s, Randoms.getGenerator().nextLong());
+				sweep(blocks, ratingUpdaters);
+			}
+			for (int s = 0; s < p; s++) {
+				relatedUpdater.setStratum(s, Randoms.getGenerator().nextLong());
+				sweep(blocks, relatedUpdaters);
+			}
+			// the visual alignment: an implicit step of items towards their projection, then the E-step
+			sweep(itemChunks, visualUpdaters);
+			updateVisualFactors(ETF);
+
+			// Gram caches for the loss
+			Sp = P.gram(executor);
+			Sq = Q.gram(executor);
+			Sz = Z.gram(executor);
+
+			if (endIteration(iter))
+				break;
+		}
+	}
+
+	/**
+	 * Alternating least squares over a local parameter server: {@code numWorkers} worker processes
+	 * ({@link VFPMFWorker}) own shards of users and items with balanced numbers of ratings, and run the coordinate
+	 * descent of each step on their shards. A worker only keeps the factors of its shards and the rows of other shards
+	 * that they read, which this process, serving as the parameter server, pushes after each step that changes them.
+	 * Workers push back their rows with the partial Gram matrices and partial sums of the loss of their shards, which
+	 * the server adds up exactly. The visual projection E is updated by the E-step of ALS on the server, after which
+	 * each worker receives the rows of E of its features and returns the projections of its items. Hence the engine
+	 * follows the iterations of ALS.
+	 * <p>
+	 * Only the row updates of P, Q and Z are distributed. The server still holds all of the visual features F, the
+	 * full factors P, Q, Z and E, and the projections ETF, and it runs the E-step over all of F by itself: it is a
+	 * coordinate descent over the features, each of which reads the residuals left by the previous ones, so that
+	 * splitting it over shards of features or items would no longer follow ALS. The engine thus spreads the work of
+	 * the row updates, not the memory of the server.
+	 */
+	protected void iterateDistributed() throws Exception {
+		int startIter = firstIteration();
+
+		int[] userBounds = balancedSplit(trainMatrix.getRowPointers(), numWorkers);
+		int[] itemBounds = balancedSplit(trainMatrix.getColumnPointers(), numWorkers);
+		// rows of P, Q and Z of other shards read by each worker, and the features of its items
+		int[][] remoteUsers = new int[numWorkers][], remoteItems = new int[numWorkers][];
+		int[][] remoteRelated = new int[numWorkers][], features = new int[numWorkers][];
+		for (int w = 0; w < numWorkers; w++) {
+			int userFrom = userBounds[w], userTo = userBounds[w + 1];
+			int itemFrom = itemBounds[w], itemTo = itemBounds[w + 1];
+			boolean[] users = new boolean[numUsers], items = new boolean[numItems], related = new boolean[numItems];
+			boolean[] feats = new boolean[numvisualfactors];
+			VFPMFWorker.mark(users, trainMatrix, false, itemFrom, itemTo);
+			VFPMFWorker.mark(items, trainMatrix, true, userFrom, userTo);
+			VFPMFWorker.mark(items, functionalmatrix, false, itemFrom, itemTo);
+			VFPMFWorker.mark(related, functionalmatrix, true, itemFrom, itemTo);
+			VFPMFWorker.mark(feats, itemfeatures, false, itemFrom, itemTo);
+			remoteUsers[w] = VFPMFWorker.remote(users, userFrom, userTo);
+			remoteItems[w] = VFPMFWorker.remote(items, itemFrom, itemTo);
+			remoteRelated[w] = VFPMFWorker.remote(related, itemFrom, itemTo);
+			features[w] = VFPMFWorker.remote(feats, 0, 0);
+		}
+
+		Process[] workers = new Process[numWorkers];
+		Socket[] sockets = new Socket[numWorkers];
+		DataInputStream[] ins = new DataInputStream[numWorkers];
+		DataOutputStream[] outs = new DataOutputStream[numWorkers];
+		ServerSocket server = new ServerSocket(0, numWorkers, InetAddress.getLoopbackAddress());
+		try {
+			// start and connect the workers
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int w = 0; w < numWorkers; w++)
+				workers[w] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+						VFPMFWorker.class.getName(), "127.0.0.1", String.valueOf(server.getLocalPort())).inheritIO()
+						.start();
+			server.setSoTimeout(60 * 1000);
+			for (int w = 0; w < numWorkers; w++) {
+				sockets[w] = server.accept();
+				ins[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream(), 1 << 16));
+				outs[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream(), 1 << 16));
+			}
+
+			// send the shards with their factors, and the rows of Q read by the first step; the Gram matrices are
+			// summed over the shards as in the iterations, so that a resumed run goes on as an uninterrupted one
+			Sq = shardedGram(Q, itemBounds);
+			Sz = shardedGram(Z, itemBounds);
+			for (int w = 0; w < numWorkers; w++) {
+				DataOutputStream out = outs[w];
+				out.writeInt(numFactors);
+				for (double param : new double[] { alpha, beta, gama, regU, regI, lamutaE })
+					out.writeDouble(param);
+				int userFrom = userBounds[w], userTo = userBounds[w + 1];
+				int itemFrom = itemBounds[w], itemTo = itemBounds[w + 1];
+				out.writeInt(userFrom);
+				out.writeInt(userTo);
+				out.writeInt(itemFrom);
+				out.writeInt(itemTo);
+				VFPMFWorker.writeIndices(out, remoteUsers[w]);
+				VFPMFWorker.writeIndices(out, remoteItems[w]);
+				VFPMFWorker.writeIndices(out, remoteRelated[w]);
+				VFPMFWorker.writeIndices(out, features[w]);
+				VFPMFWorker.Block.write(out, trainMatrix, true, userFrom, userTo);
+				VFPMFWorker.Block.write(out, trainMatrix, false, itemFrom, itemTo);
+				VFPMFWorker.Block.write(out, functionalmatrix, true, itemFrom, itemTo);
+				VFPMFWorker.Block.write(out, functionalmatrix, false, itemFrom, itemTo);
+				VFPMFWorker.Block.write(out, itemfeatures, false, itemFrom, itemTo);
+				VFPMFWorker.writeRows(out, P, userFrom, userTo);
+				VFPMFWorker.writeRows(out, Q, itemFrom, itemTo);
+				VFPMFWorker.writeRows(out, Z, itemFrom, itemTo);
+				VFPMFWorker.writeRows(out, Q, remoteItems[w]);
+				Sq.write(out);
+				out.flush();
+			}
+			// project the items on E as initialized, along with the rows of Z read by the item step
+			project(ins, outs, itemBounds, features, remoteRelated);
+
+			for (int iter = startIter; iter <= maxIters; iter++) {
+				Logs.debug("{}{} runs at iteration = {} {}", algoName, foldInfo, iter, new Date());
+				// Step 1: update user factors;
+				broadcast(outs, VFPMFWorker.USERS);
+				Sp = pull(ins, P, userBounds);
+
+				// Step 2: update item factors;
+				push(outs, VFPMFWorker.ITEMS, P, remoteUsers, Sp);
+				Sq = pull(ins, Q, itemBounds);
+				double ratingLoss = sum(ins);
+
+				// Step 3: update Z factors;
+				push(outs, VFPMFWorker.RELATED, Q, remoteItems, Sq);
+				Sz = pull(ins, Z, itemBounds);
+				double relatedLoss = sum(ins);
+
+				// Step 4: update visual factors, and then the projections of items on the workers;
+				updateVisualFactors(ETF);
+				double visualLoss = project(ins, outs, itemBounds, features, remoteRelated);
+
+				if (endIteration(iter, objective(ratingLoss, relatedLoss, visualLoss)))
+					break;
+			}
+
+			broadcast(outs, VFPMFWorker.STOP);
+			for (Process worker : workers)
+				worker.waitFor();
+		} finally {
+			for (Socket socket : sockets)
+				if (socket != null)
+					socket.close();
+			server.close();
+			for (Process worker : workers)
+				if (worker != null)
+					worker.destroy();
+		}
+	}
+
+	/**
+	 * @return the Gram matrix of a matrix as the sum of the partial ones of the shards, as pulled from the workers
+	 */
+	private static DenseMatrix shardedGram(DenseMatrix M, int[] bounds) {
+		DenseMatrix gram = null;
+		for (int w = 0; w < bounds.length - 1; w++) {
+			DenseMatrix partial = M.gram(bounds[w], bounds[w + 1]);
+			gram = gram == null ? partial : gram.add(partial);
+		}
+		return gram;
+	}
+
+	/**
+	 * Send a command to each worker with the rows of a matrix that it reads from other shards, and its Gram matrix
+	 */
+	private static void push(DataOutputStream[] outs, byte command, DenseMatrix M, int[][] rows, DenseMatrix gram)
+			throws IOException {
+		for (int w = 0; w < outs.length; w++) {
+			DataOutputStream out = outs[w];
+			out.writeByte(command);
+			VFPMFWorker.writeRows(out, M, rows[w]);
+			gram.write(out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Receive the rows [bounds[w], bounds[w + 1]) of a matrix updated by each worker w, and their partial Gram matrix
+	 * 
+	 * @return the Gram matrix of the matrix, i.e., the sum of the partial ones
+	 */
+	private static DenseMatrix pull(DataInputStream[] ins, DenseMatrix M, int[] bounds) throws IOException {
+		DenseMatrix gram = null;
+		for (int w = 0; w < ins.length; w++) {
+			VFPMFWorker.readRows(ins[w], M, bounds[w], bounds[w + 1]);
+			DenseMatrix partial = DenseMatrix.read(ins[w]);
+			gram = gram == null ? partial : gram.add(partial);
+		}
+		return gram;
+	}
+
+	/**
+	 * @return the sum of a partial sum received from each worker
+	 */
+	private static double sum(DataInputStream[] ins) throws IOException {
+		double sum = 0;
+		for (DataInputStream in : ins)
+			sum += in.readDouble();
+		return sum;
+	}
+
+	/**
+	 * Send each worker the rows of E of its features, along with the rows of Z that it reads from other shards and
+	 * Sz, and receive the projections E^T f_i of its items into ETF
+	 * 
+	 * @return the visual loss, i.e., the sum of the partial ones of the workers
+	 */
+	private double project(DataInputStream[] ins, DataOutputStream[] outs, int[] itemBounds, int[][] features,
+			int[][] remoteRelated) throws IOException {
+		for (int w = 0; w < numWorkers; w++) {
+			DataOutputStream out = outs[w];
+			out.writeByte(VFPMFWorker.VISUAL);
+			VFPMFWorker.writeRows(out, E, features[w]);
+			VFPMFWorker.writeRows(out, Z, remoteRelated[w]);
+			Sz.write(out);
+			out.flush();
+		}
+
+		double visualLoss = 0;
+		for (int w = 0; w < numWorkers; w++) {
+			DataInputStream in = ins[w];
+			for (int i = itemBounds[w]; i < itemBounds[w + 1]; i++)
+				for (int f = 0; f < numFactors; f++)
+					ETF.set(f, i, in.readDouble());
+			visualLoss += in.readDouble();
+		}
+		return visualLoss;
+	}
+
+	/**
+	 * Send a command to all workers
+	 */
+	private static void broadcast(DataOutputStream[] outs, byte command) throws IOException {
+		for (DataOutputStream out : outs) {
+			out.writeByte(command);
+			out.flush();
+		}
+	}
+
+	/**
+	 * @return the first iteration to run, i.e., the one after the last checkpoint when resuming
+	 */
+	private int firstIteration() throws Exception {
+		if (isResume && new File(checkpointPath()).exists())
+			return loadCheckpoint() + 1;
+		return 1;
+	}
+
+	/**
+	 * @return the setup a checkpoint is valid for: the engine, the hyper-parameters and a hash of the data
+	 */
+	protected String checkpointSetup() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("engine=").append(engine);
+		if (engine.equals("dsgd"))
+			sb.append(" grid=").append(numCPUs);
+		if (engine.equals("sgd") || engine.equals("dsgd"))
+			sb.append(" negatives=").append(numNegatives).append(" learnRate=").append(initLRate)
+					.append(" boldDriver=").append(isBoldDriver).append(" decay=").append(decay);
+		else if (engine.equals("als"))
+			sb.append(" solver=").append(isCG ? "cg" + cgSteps : "cd");
+		sb.append(" factors=").append(numFactors).append(" alpha=").append(alpha).append(" beta=").append(beta)
+				.append(" gama=").append(gama).append(" regU=").append(regU).append(" regI=").append(regI)
+				.append(" lamutaE=").append(lamutaE);
+		sb.append(" visual=").append(numvisualfactors);
+		if (visualProjection != null)
+			sb.append(" projection=").append(projectionMethod).append(projectionSeed);
+
+		long hash = 1;
+		for (SparseMatrix M : new SparseMatrix[] { trainMatrix, functionalmatrix, itemfeatures }) {
+			hash = 31 * hash + M.numRows();
+			hash = 31 * hash + M.numColumns();
+			for (int ptr : M.getRowPointers())
+				hash = 31 * hash + ptr;
+			for (int col : M.getColumnIndices())
+				hash = 31 * hash + col;
+			for (double value : M.getData())
+				hash = 31 * hash + Double.doubleToLongBits(value);
+		}
+		sb.append(" data=").append(Long.toHexString(hash));
+
+		return sb.toString();
+	}
+
+	/**
+	 * Compute the loss, check convergence and save a checkpoint if due
+	 * 
+	 * @return whether the training is converged
+	 */
+	private boolean endIteration(int iter) throws Exception {
+		return endIteration(iter, computeLoss());
+	}
+
+	/**
+	 * Check convergence at the given loss and save a checkpoint if due
+	 * 
+	 * @return whether the training is converged
+	 */
+	private boolean endIteration(int iter, double loss) throws Exception {
+		this.loss = loss;
+		boolean converged = isConverged(iter);
+
+		if (checkpointInterval > 0 && (iter % checkpointInterval == 0 || converged || iter == maxIters))
+			saveCheckpoint(iter);
+		return converged;
+	}
+
+	// first word of a saved model, followed by the projection its visual factors E are of
+	static final int MODEL_MAGIC = 0x56464d32;
+
+	/**
+	 * @return the key of the visual features that the rows of E refer to: "none" for the raw features, or the method,
+	 *         dimension and seed of the projection with a hash of its matrix, which also tells apart SVD projections
+	 *         fitted on other data
+	 */
+	protected String projectionKey() {
+		if (visualProjection == null)
+			return "none";
+		long hash = 1;
+		for (double value : visualProjection.getData())
+			hash = 31 * hash + Double.doubleToLongBits(value);
+		return projectionMethod + visualDim + "-" + projectionSeed + ":" + Long.toHexString(hash);
+	}
+
+	@Override
+	protected void saveModel() throws Exception {
+		super.saveModel();
+
+		// keyed by raw ids, so that it can warm-start the training on a later version of data
+		String path = FileIO.makeDirectory(tempDirPath, algoName) + "model" + foldInfo + ".bin";
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+		try {
+			out.writeInt(MODEL_MAGIC);
+			out.writeUTF(projectionKey());
+			out.writeInt(numUsers);
+			for (int u = 0; u < numUsers; u++)
+				out.writeUTF(rateDao.getUserId(u));
+			out.writeInt(numItems);
+			for (int j = 0; j < numItems; j++)
+				out.writeUTF(rateDao.getItemId(j));
+
+			P.write(out);
+			Q.write(out);
+			Z.write(out);
+			E.write(out);
+		} finally {
+			out.close();
+		}
+		Logs.debug("{}{} model for warm start is saved to {}", algoName, foldInfo, path);
+	}
+
+	/**
+	 * Initialize factors from a model saved by {@code saveModel}: users and items are matched by their raw ids, and the
+	 * factors of new users and items keep their random initialization. The visual factors E are only reused if they are
+	 * of the same visual features, i.e., the same projection or none
+	 * 
+	 * @param path
+	 *            path of the saved model
+	 */
+	protected void loadWarmStart(String path) throws Exception {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+		DenseMatrix prevP, prevQ, prevZ, prevE;
+		String[] prevUsers, prevItems;
+		String prevKey;
+		try {
+			// models of the old format have no projection key, and their E is only taken for raw features
+			int first = in.readInt();
+			prevKey = first == MODEL_MAGIC ? in.readUTF() : "none";
+			prevUsers = new String[first == MODEL_MAGIC ? in.readInt() : first];
+			for (int u = 0; u < prevUsers.length; u++)
+				prevUsers[u] = in.readUTF();
+			prevItems = new String[in.readInt()];
+			for (int j = 0; j < prevItems.length; j++)
+				prevItems[j] = in.readUTF();
+
+			prevP = DenseMatrix.read(in);
+			prevQ = DenseMatrix.read(in);
+			prevZ = DenseMatrix.read(in);
+			prevE = DenseMatrix.read(in);
+		} finally {
+			in.close();
+		}
+
+		if (prevP.numColumns() != numFactors)
+			throw new IOException("Model " + path + " has " + prevP.numColumns() + " factors, but " + numFactors
+					+ " are expected");
+
+		int numOldUsers = 0, numOldItems = 0;
+		for (int u = 0; u < prevUsers.length; u++) {
+			Integer inner = rateDao.getUserIds().get(prevUsers[u]);
+			if (inner != null) {
+				P.setRow(inner, prevP.row(u, false));
+				numOldUsers++;
+			}
+		}
+		for (int j = 0; j < prevItems.length; j++) {
+			Integer inner = rateDao.getItemIds().get(prevItems[j]);
+			if (inner != null) {
+				Q.setRow(inner, prevQ.row(j, false));
+				Z.setRow(inner, prevZ.row(j, false));
+				numOldItems++;
+			}
+		}
+		String key = projectionKey();
+		if (prevE.numRows() == numvisualfactors && prevKey.equals(key))
+			E = prevE;
+		else
+			Logs.warn("Visual factors of {} are not reused: {} features of projection {} vs. {} of {} expected",
+					new Object[] { path, prevE.numRows(), prevKey, numvisualfactors, key });
+
+		Logs.debug("{}{} warm starts from {}: {}/{} users and {}/{} items are known, training for {} iterations",
+				new Object[] { algoName, foldInfo, path, numOldUsers, numUsers, numOldItems, numItems, maxIters });
+	}
+
+	// first word of a checkpoint, followed by the setup it is saved by
+	static final int CHECKPOINT_MAGIC = 0x56464b32;
+
+	/**
+	 * @return the file path of training checkpoints
+	 */
+	protected String checkpointPath() {
+		return FileIO.makeDirectory(tempDirPath, algoName) + "checkpoint" + foldInfo + ".bin";
+	}
+
+	/**
+	 * Save the training state after an iteration in a binary format, i.e., the setup it is valid for, the iteration,
+	 * loss, random generator and all model matrices including the incrementally maintained ETF. The file is written
+	 * aside and then moved, so that a crash while writing leaves the previous checkpoint intact.
+	 * 
+	 * @param iter
+	 *            the current iteration
+	 */
+	protected void saveCheckpoint(int iter) throws Exception {
+		String path = checkpointPath();
+		File tmp = new File(path + ".tmp");
+
+		ByteArrayOutputStream rng = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(rng);
+		oos.writeObject(Randoms.getGenerator());
+		oos.close();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeUTF(checkpointSetup());
+			out.writeInt(iter);
+			out.writeDouble(loss);
+			out.writeDouble(last_loss);
+			out.writeDouble(lRate);
+			out.writeInt(numStalls);
+			out.writeInt(rng.size());
+			rng.writeTo(out);
 
-					for (int k = 0; k < numFactors; k++) {
-						if (f != k) {
-							numer -= P.get(u, k) * Sq.get(f, k);
+			P.write(out);
+			Q.write(out);
+			Z.write(out);
+			E.write(out);
+			ETF.write(out);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		Logs.debug("{}{} saves checkpoint of iteration {} to {}", new Object[] { algoName, foldInfo, iter, path });
+	}
+
+	/**
+	 * Restore the training state saved by {@code saveCheckpoint}. A checkpoint saved by another setup (see
+	 * {@code checkpointSetup}) is not resumed, and the training starts afresh. The model matrices are restored in
+	 * place, so that the references the engines hold to them stay valid.
+	 * 
+	 * @return the iteration of the checkpoint, or 0 if it is not resumed
+	 */
+	protected int loadCheckpoint() throws Exception {
+		String path = checkpointPath();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+		int iter;
+		DenseMatrix savedP, savedQ, savedZ, savedE, savedETF;
+		try {
+			String setup = checkpointSetup();
+			if (in.readInt() != CHECKPOINT_MAGIC) {
+				Logs.warn("Checkpoint {} is of an old format, and the training starts afresh", path);
+				return 0;
+			}
+			String saved = in.readUTF();
+			if (!saved.equals(setup)) {
+				Logs.warn("Checkpoint {} is saved by another setup, and the training starts afresh: [{}] vs. [{}]",
+						path, saved, setup);
+				return 0;
+			}
+
+			iter = in.readInt();
+			loss = in.readDouble();
+			last_loss = in.readDouble();
+			lRate = in.readDouble();
+			numStalls = in.readInt();
+
+			byte[] rng = new byte[in.readInt()];
+			in.readFully(rng);
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(rng));
+			Randoms.setGenerator((Random) ois.readObject());
+			ois.close();
+
+			savedP = DenseMatrix.read(in);
+			savedQ = DenseMatrix.read(in);
+			savedZ = DenseMatrix.read(in);
+			savedE = DenseMatrix.read(in);
+			savedETF = DenseMatrix.read(in);
+		} finally {
+			in.close();
+		}
+
+		DenseMatrix[] saved = { savedP, savedQ, savedZ, savedE, savedETF }, model = { P, Q, Z, E, ETF };
+		for (int m = 0; m < model.length; m++)
+			if (saved[m].numRows() != model[m].numRows() || saved[m].numColumns() != model[m].numColumns())
+				throw new IOException("Checkpoint " + path + " does not match the current data and settings");
+		for (int m = 0; m < model.length; m++)
+			System.arraycopy(saved[m].getData(), 0, model[m].getData(), 0, model[m].getData().length);
+
+		Logs.debug("{}{} resumes from checkpoint of iteration {}", new Object[] { algoName, foldInfo, iter });
+		return iter;
+	}
+
+	/**
+	 * Compute the objective of VFPMF, where the sums over all (user, item) and (item, related item) pairs are obtained
+	 * from the Gram caches Sp, Sq and Sz, and only observed pairs are visited
+	 * 
+	 * @return weighted reconstruction loss + beta * bought-together loss + gama * visual loss + regularization
+	 */
+	protected double computeLoss() {
+		// observed pairs: w (1 - pred)^2 replaces pred^2
+		double loss = 0, relatedLoss = 0;
+		for (int u = 0; u < numUsers; u++) {
+			for (VectorEntry entry : trainMatrix.row(u)) {
+				double pred = DenseMatrix.rowMult(P, u, Q, entry.index());
+				double w = 1.0 + alpha * entry.get();
+				loss += w * (1 - pred) * (1 - pred) - pred * pred;
+			}
+		}
+		for (int i = 0; i < numItems; i++) {
+			for (VectorEntry entry : functionalmatrix.row(i)) {
+				double pred = DenseMatrix.rowMult(Q, i, Z, entry.index());
+				double q = 1.0 + alpha * entry.get();
+				relatedLoss += q * (1 - pred) * (1 - pred) - pred * pred;
+			}
+		}
+
+		// visual loss: ||Q^T - E^T F||^2
+		double visualLoss = 0;
+		for (int i = 0; i < numItems; i++) {
+			for (int f = 0; f < numFactors; f++) {
+				double diff = Q.get(i, f) - ETF.get(f, i);
+				visualLoss += diff * diff;
+			}
+		}
+
+		return objective(loss, relatedLoss, visualLoss);
+	}
+
+	/**
+	 * Complete the objective of VFPMF with the sums over all pairs, obtained from the Gram caches, and the
+	 * regularization
+	 * 
+	 * @param loss
+	 *            sum of w (1 - pred)^2 - pred^2 over observed (user, item) pairs
+	 * @param relatedLoss
+	 *            sum of q (1 - pred)^2 - pred^2 over observed (item, related item) pairs
+	 * @param visualLoss
+	 *            visual loss ||Q^T - E^T F||^2
+	 * @return the objective
+	 */
+	protected double objective(double loss, double relatedLoss, double visualLoss) {
+		// sum of squared predictions over all pairs: trace(Sp Sq) and trace(Sq Sz)
+		for (int f = 0; f < numFactors; f++) {
+			for (int k = 0; k < numFactors; k++) {
+				loss += Sp.get(f, k) * Sq.get(f, k);
+				relatedLoss += Sq.get(f, k) * Sz.get(f, k);
+			}
+		}
+
+		double regLoss = regU * sqNorm(P) + regI * sqNorm(Q) + regI * sqNorm(Z) + lamutaE * sqNorm(E);
+
+		return loss + beta * relatedLoss + gama * visualLoss + regLoss;
+	}
+
+	/**
+	 * @return the squared Frobenius norm of a matrix
+	 */
+	protected static double sqNorm(DenseMatrix mat) {
+		double norm = mat.norm();
+		return norm * norm;
+	}
+
+	@Override
+	protected boolean isConverged(int iter) throws Exception {
+		// relative decrease of loss, computed before last_loss is overridden
+		double delta = iter > 1 ? (last_loss - loss) / Math.abs(last_loss) : Double.MAX_VALUE;
+
+		boolean converged = super.isConverged(iter);
+		if (tolerance > 0) {
+			numStalls = delta < tolerance ? numStalls + 1 : 0;
+			if (numStalls >= patience) {
+				Logs.debug("{}{} converges at iteration = {}: relative delta_loss = {} < {} for {} iteration(s)",
+						new Object[] { algoName, foldInfo, iter, (float) delta, tolerance, numStalls });
+				converged = true;
+			}
+		}
+
+		return converged;
+	}
+
+	@Override
+	protected void postModel() throws Exception {
+		coldProjection();
+	}
+
+	/**
+	 * @return the visual projection E^T F restricted to items without training data, built once after training
+	 */
+	protected DenseMatrix coldProjection() {
+		DenseMatrix qs = QS;
+		if (qs == null) {
+			synchronized (this) {
+				if (QS == null) {
+					int[] index = new int[numItems];
+					int numCold = 0;
+					for (int j = 0; j < numItems; j++)
+						index[j] = trainMatrix.columnSize(j) == 0 ? numCold++ : -1;
+
+					DenseMatrix proj = new DenseMatrix(numCold, numFactors);
+					for (int j = 0; j < numItems; j++) {
+						if (index[j] < 0)
+							continue;
+						for (VectorEntry entry : itemfeatures.column(j)) {
+							int d = entry.index();
+							double fdj = entry.get();
+							for (int f = 0; f < numFactors; f++)
+								proj.add(index[j], f, E.get(d, f) * fdj);
 						}
 					}
-					double puf = P.get(u, f);
-					for (VectorEntry entry : row) {
-						int i = entry.index();
-						// for (int i : indexes) {
-						double qif = Q.get(i, f);
-						prediction_items[i] -= puf * qif;
-						numer += (w_items[i] - (w_items[i] - 1) * prediction_items[i]) * qif;
-						denom += (w_items[i] - 1) * qif * qif;
-					}
-					// update puf
-					puf = numer / denom;
-					P.set(u, f, puf);
-					for (VectorEntry entry : row) {
-						int i = entry.index();
-						// for (int i : indexes) {
-						prediction_items[i] += puf * Q.get(i, f);
-					}
+					coldItems = index;
+					QS = proj;
 				}
+				qs = QS;
 			}
-			// Update the Sp cache
-			Sp = P.transMult();
-			Sz = Z.transMult();
+		}
+		return qs;
+	}
 
-			DenseMatrix ETF = E.transpose().mult(itemfeatures);// numFactors X numItems
+	/**
+	 * Split the rows of compressed structures into chunks of similar cost, taking the cost of a row as its number of
+	 * entries in all structures plus {@code numFactors} for the dense part of its update. A row heavier than the
+	 * average chunk (e.g., a hub item) forms a chunk on its own. Chunks are ordered from the heaviest to the lightest,
+	 * so that heavy chunks are claimed first and light ones fill the gaps at the end of a sweep.
+	 * 
+	 * @param numChunks
+	 *            expected number of chunks
+	 * @param ptrs
+	 *            row (or column) pointers of CRS (or CCS) structures with the same number of rows
+	 * @return chunk boundaries, i.e., chunk c covers rows [chunks[2c], chunks[2c + 1])
+	 */
+	protected int[] partition(int numChunks, int[]... ptrs) {
+		int numRows = ptrs[0].length - 1;
+		long total = (long) numRows * numFactors;
+		for (int[] ptr : ptrs)
+			total += ptr[numRows] - ptr[0];
+		long target = Math.max(1, (total + numChunks - 1) / numChunks);
 
-			// Step 2: update item factors;
-			for (int i = 0; i < numItems; i++) {
-				SparseVector column = trainMatrix.column(i);
-				SparseVector functional = functionalmatrix.row(i);
-				// SparseVector column = itemUserList[i];
-				// SparseVector related = itemrelatedList[i];
-				// int[] uIndexes = new int[column.size()];
-				// int[] gIndexes = new int[related.size()];
-				// int number = 0;
-				for (VectorEntry entry : column) {
-					int u = entry.index();
-					// uIndexes[number++] = u;
-					prediction_users[u] = DenseMatrix.rowMult(P, u, Q, i);
-					w_users[u] = 1.0 + alpha * entry.get();
+		List<long[]> chunks = new ArrayList<>(numChunks + 1);
+		long cost = 0;
+		for (int r = 0, start = 0; r < numRows; r++) {
+			long rowCost = numFactors;
+			for (int[] ptr : ptrs)
+				rowCost += ptr[r + 1] - ptr[r];
+
+			// close the current chunk before a row that would overflow it
+			if (cost > 0 && cost + rowCost > target) {
+				chunks.add(new long[] { start, r, cost });
+				start = r;
+				cost = 0;
+			}
+			cost += rowCost;
+			if (r == numRows - 1)
+				chunks.add(new long[] { start, numRows, cost });
+		}
+
+		Collections.sort(chunks, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(b[2], a[2]);
+			}
+		});
+
+		int[] res = new int[chunks.size() * 2];
+		for (int c = 0; c < chunks.size(); c++) {
+			res[2 * c] = (int) chunks.get(c)[0];
+			res[2 * c + 1] = (int) chunks.get(c)[1];
+		}
+		return res;
+	}
+
+	/**
+	 * Split the rows of a compressed structure into contiguous ranges with similar numbers of entries
+	 * 
+	 * @param ptr
+	 *            row (or column) pointers of a CRS (or CCS) structure
+	 * @param numParts
+	 *            number of ranges
+	 * @return range boundaries, i.e., range b covers rows [bounds[b], bounds[b + 1])
+	 */
+	protected static int[] balancedSplit(int[] ptr, int numParts) {
+		int numRows = ptr.length - 1;
+		long total = ptr[numRows];
+		int[] bounds = new int[numParts + 1];
+		bounds[numParts] = numRows;
+		for (int b = 1, r = 0; b < numParts; b++) {
+			long target = total * b / numParts;
+			while (r < numRows && ptr[r] < target)
+				r++;
+			bounds[b] = r;
+		}
+		return bounds;
+	}
+
+	/**
+	 * @return the maximum number of entries of a row (or column) in a compressed structure
+	 */
+	protected static int maxSize(int[] ptr) {
+		int max = 0;
+		for (int r = 0; r < ptr.length - 1; r++)
+			max = Math.max(max, ptr[r + 1] - ptr[r]);
+		return max;
+	}
+
+	/**
+	 * Update all rows chunk by chunk: each worker claims the next unprocessed chunk until none is left, so that
+	 * workers finishing early take over the remaining chunks of slower ones
+	 * 
+	 * @param chunks
+	 *            chunks from {@code partition}
+	 * @param workers
+	 *            one updater (with its own caches) per thread
+	 */
+	protected void sweep(final int[] chunks, RowUpdater[] workers) throws Exception {
+		final AtomicInteger cursor = new AtomicInteger();
+
+		List<Callable<Void>> tasks = new ArrayList<>(workers.length);
+		for (final RowUpdater worker : workers) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int c = cursor.getAndIncrement(); 2 * c < chunks.length; c = cursor.getAndIncrement())
+						for (int r = chunks[2 * c]; r < chunks[2 * c + 1]; r++)
+							worker.update(r);
+					return null;
 				}
-				// number = 0;
-				for (VectorEntry entry : functional) {
-					int g = entry.index();
-					// gIndexes[number++] = g;
-					prediction_itemrelated[g] = DenseMatrix.rowMult(Q, i, Z, g);
-					q_itemrelated[g] = 1.0 + alpha * entry.get();
+			});
+		}
+
+		// propagate exceptions of workers
+		for (Future<Void> future : executor.invokeAll(tasks))
+			future.get();
+	}
+
+	/**
+	 * Update of a single row of a factor matrix
+	 */
+	protected interface RowUpdater {
+		void update(int row) throws Exception;
+	}
+
+	/**
+	 * Coordinate descent of user factors: rows of P are independent given Q and Sq
+	 */
+	private class UserUpdater implements RowUpdater {
+		// items, confidences and caches of predictions, indexed by the position in a user's row
+		private final int[] items;
+		private final double[] prediction_items, w_items;
+		private final double[] pu;
+		// weights of the rank-one terms and the right-hand side of conjugate gradient
+		private final double[] c_items, b;
+		private final CGSolver solver;
+
+		UserUpdater(int capacity) {
+			items = new int[capacity];
+			prediction_items = new double[capacity];
+			w_items = new double[capacity];
+			pu = new double[numFactors];
+			c_items = new double[capacity];
+			b = new double[numFactors];
+			solver = new CGSolver();
+		}
+
+		@Override
+		public void update(int u) {
+			int n = 0;
+			for (VectorEntry entry : trainMatrix.row(u)) {
+				items[n] = entry.index();
+				w_items[n++] = 1.0 + alpha * entry.get();
+			}
+			for (int f = 0; f < numFactors; f++)
+				pu[f] = P.get(u, f);
+
+			if (isCG) {
+				// (Sq + regU I + sum (w - 1) q q^T) pu = sum w q
+				Arrays.fill(b, 0);
+				for (int m = 0; m < n; m++) {
+					c_items[m] = w_items[m] - 1;
+					for (int f = 0; f < numFactors; f++)
+						b[f] += w_items[m] * Q.get(items[m], f);
 				}
-				for (int f = 0; f < numFactors; f++) {
-					double numer = 0, denom = Sp.get(f, f) + regI;
-					double numer1 = 0, denom1 = Sz.get(f, f);
-					for (int k = 0; k < numFactors; k++) {
-						if (f != k) {
-							numer -= Q.get(i, k) * Sp.get(k, f);
-							numer1 -= Q.get(i, k) * Sz.get(k, f);
-						}
-					}
-					double qif = Q.get(i, f);
-					for (VectorEntry entry : column) {
-						int u = entry.index();
-						// for (int u : uIndexes) {
-						double puf = P.get(u, f);
-						prediction_users[u] -= puf * qif;
-						numer += (w_users[u] - (w_users[u] - 1) * prediction_users[u]) * puf;
-						denom += (w_users[u] - 1) * puf * puf;
-					}
-					for (VectorEntry entry : functional) {
-						int g = entry.index();
-						// for (int g : gIndexes) {
-						double zgf = Z.get(g, f);
-						prediction_itemrelated[g] -= zgf * qif;
-						numer1 += (q_itemrelated[g] - (q_itemrelated[g] - 1) * prediction_itemrelated[g]) * zgf;
-						denom1 += (q_itemrelated[g] - 1) * zgf * zgf;
-					}
-					// update qif
-					qif = (numer + numer1 * beta + gama * ETF.get(f, i)) / (denom + denom1 * beta + gama);
-					Q.set(i, f, qif);
-					for (VectorEntry entry : column) {
-						int u = entry.index();
-						// for (int u : uIndexes) {
-						prediction_users[u] += P.get(u, f) * qif;
-					}
-					for (VectorEntry entry : functional) {
-						int g = entry.index();
-						// for (int g : gIndexes) {
-						prediction_itemrelated[g] += Z.get(g, f) * qif;
-					}
+				solver.solve(pu, b, Sq, regU, Q, items, c_items, n, null, null, null, 0);
+			} else
+				kernel.updateUser(pu, items, w_items, prediction_items, n, Q, Sq);
+
+			for (int f = 0; f < numFactors; f++)
+				P.set(u, f, pu[f]);
+		}
+	}
+
+	/**
+	 * Fold a new (or updated) user into the trained model without retraining, see {@link #foldInUser(int[], double[],
+	 * DenseVector)}
+	 */
+	public DenseVector foldInUser(int[] items, double[] ratings) {
+		return foldInUser(items, ratings, null);
+	}
+
+	/**
+	 * Fold a user into the trained model without retraining: the user factors are learned by the coordinate descent of
+	 * Step 1 against the trained item factors, which are left unchanged. It costs O(k^2 + |items| k) and only reads the
+	 * model, so it is safe to call concurrently with scoring.
+	 * 
+	 * @param items
+	 *            inner ids of the items the user interacted with
+	 * @param ratings
+	 *            ratings of the items
+	 * @param init
+	 *            initial factors, e.g., the current factors of an updated user; null to start from zeros
+	 * @return the factors of the user, to be scored by {@link #predict(DenseVector, int)}
+	 */
+	public DenseVector foldInUser(int[] items, double[] ratings, DenseVector init) {
+		int size = items.length;
+		double[] w_items = new double[size];
+		for (int n = 0; n < size; n++)
+			w_items[n] = 1.0 + alpha * ratings[n];
+
+		double[] pu = new double[numFactors];
+		if (init != null)
+			for (int f = 0; f < numFactors; f++)
+				pu[f] = init.get(f);
+
+		double[] prediction_items = new double[size];
+		for (int sweep = 0; sweep < FOLD_IN_SWEEPS; sweep++)
+			kernel.updateUser(pu, items, w_items, prediction_items, size, Q, Sq);
+
+		return new DenseVector(pu);
+	}
+
+	/**
+	 * Coordinate descent of item factors: rows of Q are independent given P, Z, ETF and the Gram caches Sp, Sz
+	 */
+	private class ItemUpdater implements RowUpdater {
+		// users (related items), confidences and caches of predictions, indexed by the position in an item's column
+		// (or related row)
+		private final int[] users, related;
+		private final double[] prediction_users, w_users;
+		private final double[] prediction_itemrelated, q_itemrelated;
+		private final double[] qi, etf;
+		// weights of the rank-one terms and the right-hand side of conjugate gradient
+		private final double[] c_users, c_itemrelated, b;
+		private final CGSolver solver;
+
+		ItemUpdater(int numUserCapacity, int numRelatedCapacity) {
+			users = new int[numUserCapacity];
+			prediction_users = new double[numUserCapacity];
+			w_users = new double[numUserCapacity];
+			related = new int[numRelatedCapacity];
+			prediction_itemrelated = new double[numRelatedCapacity];
+			q_itemrelated = new double[numRelatedCapacity];
+			qi = new double[numFactors];
+			etf = new double[numFactors];
+			c_users = new double[numUserCapacity];
+			c_itemrelated = new double[numRelatedCapacity];
+			b = new double[numFactors];
+			solver = new CGSolver();
+		}
+
+		@Override
+		public void update(int i) {
+			int numUsers = 0;
+			for (VectorEntry entry : trainMatrix.column(i)) {
+				users[numUsers] = entry.index();
+				w_users[numUsers++] = 1.0 + alpha * entry.get();
+			}
+			int numRelated = 0;
+			for (VectorEntry entry : functionalmatrix.row(i)) {
+				related[numRelated] = entry.index();
+				q_itemrelated[numRelated++] = 1.0 + alpha * entry.get();
+			}
+			for (int f = 0; f < numFactors; f++) {
+				qi[f] = Q.get(i, f);
+				etf[f] = ETF.get(f, i);
+			}
+
+			if (isCG) {
+				// (Sp + beta Sz + (regI + gama) I + sum (w - 1) p p^T + beta sum (q - 1) z z^T) qi
+				// = sum w p + beta sum q z + gama etf
+				for (int f = 0; f < numFactors; f++)
+					b[f] = gama * etf[f];
+				for (int n = 0; n < numUsers; n++) {
+					c_users[n] = w_users[n] - 1;
+					for (int f = 0; f < numFactors; f++)
+						b[f] += w_users[n] * P.get(users[n], f);
 				}
+				for (int n = 0; n < numRelated; n++) {
+					c_itemrelated[n] = beta * (q_itemrelated[n] - 1);
+					for (int f = 0; f < numFactors; f++)
+						b[f] += beta * q_itemrelated[n] * Z.get(related[n], f);
+				}
+				solver.solve(qi, b, Si, regI + gama, P, users, c_users, numUsers, Z, related, c_itemrelated,
+						numRelated);
+			} else
+				kernel.updateItem(qi, etf, users, w_users, prediction_users, numUsers, related, q_itemrelated,
+						prediction_itemrelated, numRelated, P, Sp, Z, Sz);
+
+			for (int f = 0; f < numFactors; f++)
+				Q.set(i, f, qi[f]);
+		}
+	}
+
+	/**
+	 * Fold a new item into the trained model without retraining: the item factors are learned by the coordinate
+	 * descent of Step 2 with no user interactions, driven by the visual projection of the item and its bought-together
+	 * links. The trained model is only read, so it is safe to call concurrently with scoring.
+	 * 
+	 * @param features
+	 *            raw visual features of the item, in the format of the visual file
+	 * @param related
+	 *            inner ids of the items bought together with the item
+	 * @return the factors of the item, to be scored by {@link #predict(int, DenseVector)}
+	 */
+	public DenseVector foldInItem(double[] features, int[] related) {
+		if (features.length != numrawvisualfactors)
+			throw new IllegalArgumentException("Expect " + numrawvisualfactors + " visual features, but got "
+					+ features.length);
+
+		// normalized (and projected) features, as F for the items in training
+		double[] fd = new double[numrawvisualfactors];
+		for (int d = 0; d < numrawvisualfactors; d++) {
+			float value = (float) features[d];
+			if (value > 0.0)
+				fd[d] = (value - visualMin) / (visualMax - visualMin);
+		}
+		if (visualProjection != null) {
+			double[] projected = new double[numvisualfactors];
+			Blas.gemv(numvisualfactors, numrawvisualfactors, visualProjection.getData(), 0, numrawvisualfactors, fd, 0,
+					projected, 0);
+			fd = projected;
+		}
+
+		// visual projection of the features, as E^T F for the items in training
+		double[] etf = new double[numFactors];
+		for (int d = 0; d < numvisualfactors; d++) {
+			if (fd[d] != 0.0) {
+				for (int f = 0; f < numFactors; f++)
+					etf[f] += E.get(d, f) * fd[d];
 			}
-			Sq = Q.transMult();
-			// Step 1: update Z factors;
-			for (int g = 0; g < numItems; g++) {
-				SparseVector item = functionalmatrix.column(g);
-				// SparseVector item = relateditemList[g];
-				// int[] iIndexes = new int[item.size()];
-				// int number = 0;
-				for (VectorEntry entry : item) {
-					int i = entry.index();
-					// iIndexes[number++] = i;
-					prediction_relateditem[i] = DenseMatrix.rowMult(Q, i, Z, g);
-					q_relateditem[i] = 1.0 + alpha * entry.get();
+		}
+
+		int numRelated = related.length;
+		double[] q_itemrelated = new double[numRelated];
+		for (int n = 0; n < numRelated; n++)
+			q_itemrelated[n] = 1.0 + alpha;
+
+		double[] qi = new double[numFactors];
+		int[] users = new int[0];
+		double[] empty = new double[0];
+		double[] prediction_itemrelated = new double[numRelated];
+		for (int sweep = 0; sweep < FOLD_IN_SWEEPS; sweep++)
+			kernel.updateItem(qi, etf, users, empty, empty, 0, related, q_itemrelated, prediction_itemrelated,
+					numRelated, P, Sp, Z, Sz);
+
+		return new DenseVector(qi);
+	}
+
+	/**
+	 * Coordinate descent of related-item factors: rows of Z are independent given Q and Sq
+	 */
+	private class RelatedUpdater implements RowUpdater {
+		// items, confidences and caches of predictions, indexed by the position in a related item's column
+		private final int[] items;
+		private final double[] prediction_relateditem, q_relateditem;
+		private final double[] zg;
+		// weights of the rank-one terms and the right-hand side of conjugate gradient
+		private final double[] c_items, b;
+		private final CGSolver solver;
+
+		RelatedUpdater(int capacity) {
+			prediction_relateditem = new double[capacity];
+			q_relateditem = new double[capacity];
+			items = new int[capacity];
+			c_items = new double[capacity];
+			zg = new double[numFactors];
+			b = new double[numFactors];
+			solver = new CGSolver();
+		}
+
+		@Override
+		public void update(int g) {
+			int n = 0;
+			for (VectorEntry entry : functionalmatrix.column(g)) {
+				items[n] = entry.index();
+				q_relateditem[n++] = 1.0 + alpha * entry.get();
+			}
+			for (int f = 0; f < numFactors; f++)
+				zg[f] = Z.get(g, f);
+
+			if (isCG) {
+				// (beta Sq + regI I + beta sum (q - 1) q_i q_i^T) zg = beta sum q q_i
+				Arrays.fill(b, 0);
+				for (int m = 0; m < n; m++) {
+					c_items[m] = beta * (q_relateditem[m] - 1);
+					for (int f = 0; f < numFactors; f++)
+						b[f] += beta * q_relateditem[m] * Q.get(items[m], f);
 				}
-				for (int f = 0; f < numFactors; f++) {
-					double numer = 0, denom = Sq.get(f, f);
-					for (int k = 0; k < numFactors; k++) {
-						if (f != k) {
-							numer -= Z.get(g, k) * Sq.get(f, k);
-						}
-					}
-					double zgf = Z.get(g, f);
-					for (VectorEntry entry : item) {
-						int i = entry.index();
-						// for (int i : iIndexes) {
-						double qif = Q.get(i, f);
-						prediction_relateditem[i] -= zgf * qif;
-						numer += (q_relateditem[i] - (q_relateditem[i] - 1) * prediction_relateditem[i]) * qif;
-						denom += (q_relateditem[i] - 1) * qif * qif;
-					}
-					// update puf
-					zgf = beta * numer / (beta * denom + regI);
-					Z.set(g, f, zgf);
-					for (VectorEntry entry : item) {
-						int i = entry.index();
-						// for (int i : iIndexes) {
-						prediction_relateditem[i] += zgf * Q.get(i, f);
-					}
+				solver.solve(zg, b, Sr, regI, Q, items, c_items, n, null, null, null, 0);
+			} else
+				kernel.updateRelated(zg, items, q_relateditem, prediction_relateditem, n, Q, Sq);
+
+			for (int f = 0; f < numFactors; f++)
+				Z.set(g, f, zg[f]);
+		}
+	}
+
+	/**
+	 * SGD step on the weighted squared error of a pair, weight * (target - x^T y)^2, taken in its implicit (proximal)
+	 * form: the step is divided by 1 + lr * weight * (|x|^2 + |y|^2), so that heavily weighted pairs, such as the
+	 * negatives standing for many unobserved pairs, cannot overshoot whatever the learning rate
+	 */
+	private void sgdStep(DenseMatrix X, int x, DenseMatrix Y, int y, double target, double weight, double lr) {
+		double pred = 0, norm = 0;
+		for (int f = 0; f < numFactors; f++) {
+			double xf = X.get(x, f), yf = Y.get(y, f);
+			pred += xf * yf;
+			norm += xf * xf + yf * yf;
+		}
+		double step = lr * weight * (target - pred) / (1 + lr * weight * norm);
+		for (int f = 0; f < numFactors; f++) {
+			double xf = X.get(x, f), yf = Y.get(y, f);
+			X.set(x, f, xf + step * yf);
+			Y.set(y, f, yf + step * xf);
+		}
+	}
+
+	/**
+	 * Proximal step on the L2 regularization reg * |x|^2 of a row, which is taken once per row and epoch, i.e., each
+	 * of the samples of the row carries its share of the regularization
+	 */
+	private void shrink(DenseMatrix X, int x, double reg, double lr) {
+		Blas.scal(numFactors, 1 / (1 + lr * reg), X.getData(), X.rowOffset(x));
+	}
+
+	/**
+	 * @return a column drawn uniformly from [from, from + n) outside the sorted column indices [start, end) of a row,
+	 *         which must leave at least one column unobserved
+	 */
+	private static int sampleUnobserved(Random random, int from, int n, int[] colInd, int start, int end) {
+		int j;
+		do {
+			j = from + random.nextInt(n);
+		} while (Arrays.binarySearch(colInd, start, end, j) >= 0);
+		return j;
+	}
+
+	/**
+	 * SGD over row r of a matrix M ~ X Y^T, see {@link #sgdRow(SparseMatrix, DenseMatrix, int, DenseMatrix, double,
+	 * int, int, int, int, Random, double)}, on all the columns of M
+	 */
+	private void sgdRow(SparseMatrix M, DenseMatrix X, int r, DenseMatrix Y, double scale, Random random, double lr) {
+		int[] rowPtr = M.getRowPointers();
+		sgdRow(M, X, r, Y, scale, 0, Y.numRows(), rowPtr[r], rowPtr[r + 1], random, lr);
+	}
+
+	/**
+	 * SGD over row r of a matrix M ~ X Y^T restricted to the n columns [from, from + n), whose entries are at positions
+	 * [start, end) of M: each observed entry, weighted by scale * (1 + alpha * value), is followed by
+	 * {@code numNegatives} unobserved columns drawn uniformly, and a row without entries draws {@code numNegatives} of
+	 * them on its own. A negative stands for its share of all the unobserved columns of the row, hence weighs scale *
+	 * (n - (end - start)) / (number of draws), which makes the negatives an unbiased estimate of the unobserved term.
+	 */
+	private void sgdRow(SparseMatrix M, DenseMatrix X, int r, DenseMatrix Y, double scale, int from, int n, int start,
+			int end, Random random, double lr) {
+		int[] colInd = M.getColumnIndices();
+		double[] data = M.getData();
+		int numUnobserved = n - (end - start);
+		int numDraws = numUnobserved > 0 ? numNegatives * Math.max(end - start, 1) : 0;
+		double negativeWeight = numDraws > 0 ? scale * numUnobserved / numDraws : 0;
+		for (int m = start; m < Math.max(end, start + 1); m++) {
+			if (m < end)
+				sgdStep(X, r, Y, colInd[m], 1, scale * (1.0 + alpha * data[m]), lr);
+			for (int s = 0; s < numNegatives && numDraws > 0; s++)
+				sgdStep(X, r, Y, sampleUnobserved(random, from, n, colInd, start, end), 0, negativeWeight, lr);
+		}
+	}
+
+	/**
+	 * SGD over the items of a user, see {@link #sgdRow}, and the regularization of the user
+	 */
+	private class UserSGDUpdater implements RowUpdater {
+		private final Random random;
+
+		UserSGDUpdater(Random random) {
+			this.random = random;
+		}
+
+		@Override
+		public void update(int u) {
+			double lr = lRate;
+			shrink(P, u, regU, lr);
+			sgdRow(trainMatrix, P, u, Q, 1.0, random, lr);
+		}
+	}
+
+	/**
+	 * SGD over a block of a p x p grid on a matrix M ~ X Y^T: block b of the current stratum s covers the rows of row
+	 * range b and the columns of column range (b + s) mod p, over which each row runs {@link #sgdRow}, so that the
+	 * negatives of a row in a block stand for its unobserved columns in the block. As every row of X and Y meets p
+	 * blocks per epoch, each visit charges it 1/p of its regularization.
+	 */
+	private class StratumUpdater implements RowUpdater {
+		private final SparseMatrix M;
+		private final DenseMatrix X, Y;
+		private final int[] rowBounds, colBounds;
+		private final double scale, regX, regY;
+		// position of the first entry of each row in each column range, i.e., offsets[r * (p + 1) + c]
+		private final int[] offsets;
+		private final int p;
+		// current stratum and its random seed
+		private int stratum;
+		private long seed;
+
+		StratumUpdater(SparseMatrix M, DenseMatrix X, DenseMatrix Y, int[] rowBounds, int[] colBounds, double scale,
+				double regX, double regY) {
+			this.M = M;
+			this.X = X;
+			this.Y = Y;
+			this.rowBounds = rowBounds;
+			this.colBounds = colBounds;
+			this.scale = scale;
+			this.regX = regX;
+			this.regY = regY;
+			int[] rowPtr = M.getRowPointers(), colInd = M.getColumnIndices();
+			p = rowBounds.length - 1;
+
+			int numRows = rowPtr.length - 1;
+			offsets = new int[numRows * (p + 1)];
+			for (int r = 0; r < numRows; r++) {
+				for (int c = 0; c <= p; c++) {
+					int pos = Arrays.binarySearch(colInd, rowPtr[r], rowPtr[r + 1], colBounds[c]);
+					offsets[r * (p + 1) + c] = pos >= 0 ? pos : -pos - 1;
 				}
 			}
+		}
 
-			DenseMatrix Y = ETF.clone();
-			for (int k = 0; k < numFactors; k++) {
-				for (int d = 0; d < numvisualfactors; d++) {
-					SparseVector vector = itemfeatures.row(d);
-					double numer = 0.0;
-					double edk = E.get(d, k);
-					for (VectorEntry entry : vector) {
-						double idj = entry.get();
-						int j = entry.index();
-						Y.set(k, j, Y.get(k, j) - edk * idj);
-						numer += (Q.get(j, k) - Y.get(k, j)) * idj;
-					}
-					edk = numer * gama / (gama * D.get(d) + lamutaE);
-					E.set(d, k, edk);
-					for (VectorEntry entry : vector) {
-						double idj = entry.get();
-						int j = entry.index();
-						Y.set(k, j, Y.get(k, j) + edk * idj);
-					}
+		void setStratum(int stratum, long seed) {
+			this.stratum = stratum;
+			this.seed = seed;
+		}
+
+		@Override
+		public void update(int b) {
+			double lr = lRate;
+			int c = (b + stratum) % p;
+			int colStart = colBounds[c], numCols = colBounds[c + 1] - colStart;
+			Random random = new Random(seed + b);
+			for (int j = colStart; j < colStart + numCols; j++)
+				shrink(Y, j, regY / p, lr);
+			for (int r = rowBounds[b]; r < rowBounds[b + 1]; r++) {
+				shrink(X, r, regX / p, lr);
+				sgdRow(M, X, r, Y, scale, colStart, numCols, offsets[r * (p + 1) + c], offsets[r * (p + 1) + c + 1],
+						random, lr);
+			}
+		}
+	}
+
+	/**
+	 * SGD over the related items of an item, see {@link #sgdRow}, and the regularization of the item in Q and Z
+	 */
+	private class ItemSGDUpdater implements RowUpdater {
+		private final Random random;
+
+		ItemSGDUpdater(Random random) {
+			this.random = random;
+		}
+
+		@Override
+		public void update(int i) {
+			double lr = lRate;
+			shrink(Q, i, regI, lr);
+			shrink(Z, i, regI, lr);
+			sgdRow(functionalmatrix, Q, i, Z, beta, random, lr);
+		}
+	}
+
+	/**
+	 * SGD on the visual alignment of an item, gama * |q_i - E^T f_i|^2, whose residual is computed afresh from the
+	 * (feature, item) entries of the item, as the projection ETF of the last epoch goes stale under concurrent updates.
+	 * The step on q_i and the rows of E is taken in its implicit form, i.e., divided by 1 + lr * gama * (1 + |f_i|^2),
+	 * and the regularization lamutaE * |e_d|^2 of a feature is shared among its (feature, item) entries.
+	 */
+	private class VisualSGDUpdater implements RowUpdater {
+		private final double[] residual = new double[numFactors];
+		private final int[] featurePtr = itemfeatures.getRowPointers();
+
+		@Override
+		public void update(int i) {
+			double lr = lRate;
+			SparseVector features = itemfeatures.column(i);
+			double norm = 0;
+			for (int f = 0; f < numFactors; f++)
+				residual[f] = Q.get(i, f);
+			for (VectorEntry entry : features) {
+				int d = entry.index();
+				double fdi = entry.get();
+				norm += fdi * fdi;
+				for (int f = 0; f < numFactors; f++)
+					residual[f] -= E.get(d, f) * fdi;
+			}
+
+			double step = lr * gama / (1 + lr * gama * (1 + norm));
+			for (int f = 0; f < numFactors; f++)
+				Q.set(i, f, Q.get(i, f) - step * residual[f]);
+			for (VectorEntry entry : features) {
+				int d = entry.index();
+				double fdi = entry.get(), shrinkage = 1 / (1 + lr * lamutaE / (featurePtr[d + 1] - featurePtr[d]));
+				for (int f = 0; f < numFactors; f++)
+					E.set(d, f, (E.get(d, f) + step * residual[f] * fdi) * shrinkage);
+			}
+		}
+	}
+
+	/**
+	 * Conjugate gradient for the k x k normal equations A x = b of a row, seeded from its current factors x, where
+	 * A = G + shift I + sum_n c1[n] y1_n y1_n^T + sum_n c2[n] y2_n y2_n^T, and y1_n (y2_n) is row rows1[n] (rows2[n])
+	 * of Y1 (Y2). Matrix A is never formed: a step costs O(k^2 + nnz k), against O(k^2 + 3 nnz k) of a coordinate
+	 * descent pass.
+	 */
+	private class CGSolver {
+		// residual, search direction and its product with A
+		private final double[] r, d, Ad;
+
+		CGSolver() {
+			r = new double[numFactors];
+			d = new double[numFactors];
+			Ad = new double[numFactors];
+		}
+
+		void solve(double[] x, double[] b, DenseMatrix G, double shift, DenseMatrix Y1, int[] rows1, double[] c1,
+				int size1, DenseMatrix Y2, int[] rows2, double[] c2, int size2) {
+			multiply(x, Ad, G, shift, Y1, rows1, c1, size1, Y2, rows2, c2, size2);
+			double rr = 0;
+			for (int f = 0; f < numFactors; f++) {
+				r[f] = b[f] - Ad[f];
+				d[f] = r[f];
+				rr += r[f] * r[f];
+			}
+			for (int step = 0; step < cgSteps && rr > 0; step++) {
+				multiply(d, Ad, G, shift, Y1, rows1, c1, size1, Y2, rows2, c2, size2);
+				double dAd = 0;
+				for (int f = 0; f < numFactors; f++)
+					dAd += d[f] * Ad[f];
+				if (dAd <= 0)
+					break;
+
+				double step_size = rr / dAd, rr_next = 0;
+				for (int f = 0; f < numFactors; f++) {
+					x[f] += step_size * d[f];
+					r[f] -= step_size * Ad[f];
+					rr_next += r[f] * r[f];
 				}
+				for (int f = 0; f < numFactors; f++)
+					d[f] = r[f] + rr_next / rr * d[f];
+				rr = rr_next;
 			}
-			QS=E.transpose().mult(itemfeatures);
 		}
+
+		private void multiply(double[] v, double[] Av, DenseMatrix G, double shift, DenseMatrix Y1, int[] rows1,
+				double[] c1, int size1, DenseMatrix Y2, int[] rows2, double[] c2, int size2) {
+			Blas.gemv(numFactors, numFactors, G.getData(), 0, numFactors, v, 0, Av, 0);
+			Blas.axpy(numFactors, shift, v, 0, Av, 0);
+			addRankOne(v, Av, Y1, rows1, c1, size1);
+			addRankOne(v, Av, Y2, rows2, c2, size2);
+		}
+
+		private void addRankOne(double[] v, double[] Av, DenseMatrix Y, int[] rows, double[] c, int size) {
+			if (size == 0)
+				return;
+			double[] y = Y.getData();
+			for (int n = 0; n < size; n++) {
+				int offset = Y.rowOffset(rows[n]);
+				double coef = c[n] * Blas.dot(numFactors, y, offset, v, 0);
+				Blas.axpy(numFactors, coef, y, offset, Av, 0);
+			}
+		}
+	}
+
+	/**
+	 * Coordinate descent of the visual projection matrix E, where each factor k is handled by its own worker: the
+	 * updates of factor k only touch column k of E and row k of the residual matrix Y, hence workers never conflict
+	 * (see {@link VFPMFKernel#updateVisual}).
+	 * Within a factor, features are visited in the sequential order, so that results do not depend on the number of
+	 * threads.
+	 * 
+	 * The residual matrix Y is updated along with E, hence Y = E^T F again after the updates.
+	 * 
+	 * @param Y
+	 *            residual matrix, initialized as E^T F (numFactors x numItems)
+	 */
+	protected void updateVisualFactors(final DenseMatrix Y) throws Exception {
+		final int[] rowPtr = itemfeatures.getRowPointers();
+		final int[] colInd = itemfeatures.getColumnIndices();
+		final double[] rowData = itemfeatures.getData();
+
+		List<Callable<Void>> tasks = new ArrayList<>(numFactors);
+		for (int f = 0; f < numFactors; f++) {
+			final int k = f;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					kernel.updateVisual(k, E, Y, Q, rowPtr, colInd, rowData, D);
+					return null;
+				}
+			});
+		}
+
+		for (Future<Void> future : executor.invokeAll(tasks))
+			future.get();
 	}
 
 	public SparseMatrix getboughttogether() throws IOException {
@@ -282,53 +1723,871 @@ public class VFPMF extends IterativeRecommender {
 		SparseMatrix itemrelatedmatrix = new SparseMatrix(numItems, numItems, dataTable, colMap);
 		return itemrelatedmatrix;
 	}
+	/**
+	 * @return a (feature, item) matrix of visual features, normalized by the min and max of positive feature values,
+	 *         and projected to visualDim features if required
+	 */
 	public SparseMatrix getVisualFactors() throws Exception {
-		Table<Integer, Integer, Double> dataTable = HashBasedTable.create();
-		Multimap<Integer, Integer> colMap = HashMultimap.create();
+		if (visualDim <= 0 || visualDim >= numrawvisualfactors)
+			return readVisualFactors();
+
+		// projected features are cached next to the visual file, keyed by the projection, together with the raw ids of
+		// their items, so that they are mapped to the inner ids of any ratings setup; the projection and the
+		// normalization are those of the items of the cache, and it is rebuilt when the visual file changes or when
+		// some items of the ratings are not in it
+		String cachePath = visualfile + "." + projectionMethod + visualDim + "-" + projectionSeed + ".bin";
+		File cache = new File(cachePath);
+		SparseMatrix features = null;
+		if (cache.exists() && cache.lastModified() > new File(visualfile).lastModified()) {
+			try {
+				Object[] cached = (Object[]) FileIO.deserialize(cachePath);
+				DenseMatrix projection = (DenseMatrix) cached[2];
+				// caches are only written if the projection has fewer entries than the raw features, as marked by
+				// their number at the end
+				if (cached.length == 6 && projection.numColumns() == numrawvisualfactors)
+					features = remapItems((String[]) cached[0], (SparseMatrix) cached[1]);
+				if (features != null) {
+					visualProjection = projection;
+					visualMin = (Float) cached[3];
+					visualMax = (Float) cached[4];
+					Logs.debug("Projected visual features are loaded from {}", cachePath);
+				}
+			} catch (InvalidClassException e) {
+				// written by an incompatible version of the matrix classes
+				features = null;
+			}
+		}
+
+		if (features == null) {
+			SparseMatrix raw = readVisualFactors();
+			DenseVector rawNorms = visualNorms;
+			visualNorms = null;
+			visualProjection = projectionMethod.equals("svd") ? svdProjection(raw, visualDim, projectionSeed)
+					: randomProjection(visualDim, numrawvisualfactors, projectionSeed);
+			features = project(raw, visualProjection);
+			// projected features are dense, and the updates of E and ETF run over the entries: keep the raw features
+			// if they have fewer
+			if (features.size() > raw.size()) {
+				Logs.warn("Visual features are not projected to {} dimensions by {}: {} entries vs. {} raw ones",
+						new Object[] { visualDim, projectionMethod, features.size(), raw.size() });
+				visualProjection = null;
+				visualNorms = rawNorms;
+				return raw;
+			}
+			String[] ids = new String[numItems];
+			for (Map.Entry<String, Integer> entry : rateDao.getItemIds().entrySet())
+				ids[entry.getValue()] = entry.getKey();
+			Logs.debug("Visual features are projected from {} to {} dimensions by {}",
+					new Object[] { numrawvisualfactors, visualDim, projectionMethod });
+			try {
+				FileIO.serialize(new Object[] { ids, features, visualProjection, visualMin, visualMax, raw.size() },
+						cachePath);
+				Logs.debug("Projected visual features are cached to {}", cachePath);
+			} catch (IOException e) {
+				Logs.warn("Projected visual features cannot be cached to {}: {}", cachePath, e.getMessage());
+				cache.delete();
+			}
+		}
+		numvisualfactors = visualDim;
+		return features;
+	}
+
+	/**
+	 * @param ids
+	 *            raw ids of the columns of the cached matrix
+	 * @param cached
+	 *            cached (feature, item) matrix
+	 * @return the cached matrix with its columns mapped to the inner ids of the items, or null if some items of the
+	 *         ratings are not in the cache
+	 */
+	private SparseMatrix remapItems(String[] ids, SparseMatrix cached) {
+		Map<String, Integer> itemIds = rateDao.getItemIds();
+		int[] inner = new int[ids.length];
+		boolean[] found = new boolean[numItems];
+		int numFound = 0;
+		for (int c = 0; c < ids.length; c++) {
+			Integer inneritemid = itemIds.get(ids[c]);
+			inner[c] = inneritemid == null ? -1 : inneritemid;
+			if (inneritemid != null && !found[inneritemid]) {
+				found[inneritemid] = true;
+				numFound++;
+			}
+		}
+		if (numFound < numItems)
+			return null;
+
+		int size = 0, capacity = cached.getData().length;
+		int[] features = new int[capacity], items = new int[capacity];
+		double[] values = new double[capacity];
+		for (MatrixEntry me : cached) {
+			int j = inner[me.column()];
+			if (j >= 0) {
+				features[size] = me.row();
+				items[size] = j;
+				values[size++] = me.get();
+			}
+		}
+		return new SparseMatrix(cached.numRows(), numItems, features, items, values, size);
+	}
+
+	/**
+	 * Very sparse random projection (Li et al., Very sparse random projections, KDD 2006): the entries are sqrt(s / n)
+	 * times 1, 0 and -1 with probabilities 1 / 2s, 1 - 1 / s and 1 / 2s, where s = sqrt(dim)
+	 * <p>
+	 * The projection has its own seed, so that it does not depend on (or disturb) the random initialization of the
+	 * model.
+	 * 
+	 * @return a random projection from dim to n dimensions (n x dim)
+	 */
+	protected static DenseMatrix randomProjection(int n, int dim, long seed) {
+		double s = Math.sqrt(dim), scale = Math.sqrt(s / n);
+		Random rnd = new Random(seed);
+		DenseMatrix R = new DenseMatrix(n, dim);
+		for (int r = 0; r < n; r++) {
+			for (int d = 0; d < dim; d++) {
+				double u = rnd.nextDouble();
+				if (u < 0.5 / s)
+					R.set(r, d, scale);
+				else if (u < 1.0 / s)
+					R.set(r, d, -scale);
+			}
+		}
+		return R;
+	}
+
+	/**
+	 * Truncated SVD by randomized range finding (Halko et al., Finding structure with randomness, SIAM Review 2011):
+	 * the range of F F^T is sketched by power iterations on a Gaussian matrix with a few more columns than n, and the
+	 * sketch is then rotated to the leading left singular vectors of F by the SVD of a small matrix
+	 * 
+	 * @param F
+	 *            (feature, item) matrix
+	 * @param n
+	 *            number of singular vectors
+	 * @param seed
+	 *            seed of the Gaussian sketch
+	 * @return the projection onto the n leading left singular vectors of F (n x numFeatures)
+	 */
+	protected static DenseMatrix svdProjection(SparseMatrix F, int n, long seed) {
+		int numFeatures = F.numRows(), l = Math.min(n + 10, Math.min(numFeatures, F.numColumns()));
+		if (n > l)
+			throw new IllegalArgumentException("Cannot project to " + n + " dimensions with " + F.numColumns()
+					+ " items");
+
+		Random rnd = new Random(seed);
+		DenseMatrix Y = new DenseMatrix(numFeatures, l);
+		for (int d = 0; d < numFeatures; d++)
+			for (int c = 0; c < l; c++)
+				Y.set(d, c, rnd.nextGaussian());
+		orthonormalize(Y);
+		for (int iter = 0; iter < 2; iter++) {
+			Y = multiply(F, transMultiply(F, Y));
+			orthonormalize(Y);
+		}
+
+		// (F^T Y)^T (F^T Y) = V S^2 V^T, hence Y V holds the leading left singular vectors of F
+		DenseMatrix T = transMultiply(F, Y);
+		DenseMatrix YV = Y.mult(eigenvectors(T.transMult()));
+		DenseMatrix R = new DenseMatrix(n, numFeatures);
+		for (int r = 0; r < n; r++)
+			for (int d = 0; d < numFeatures; d++)
+				R.set(r, d, YV.get(d, r));
+		return R;
+	}
+
+	/**
+	 * Eigen-decomposition of a small symmetric matrix by cyclic Jacobi rotations. {@link librec.data.SVD} is not used
+	 * here since it does not converge for matrices with singular values below {@link librec.util.Maths#zero}.
+	 * 
+	 * @return eigenvectors in columns, sorted by decreasing eigenvalues
+	 */
+	private static DenseMatrix eigenvectors(DenseMatrix S) {
+		int n = S.numRows();
+		double[][] A = new double[n][n], V = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++)
+				A[i][j] = S.get(i, j);
+			V[i][i] = 1.0;
+		}
+
+		for (int sweep = 0; sweep < 100; sweep++) {
+			double off = 0, diag = 0;
+			for (int p = 0; p < n; p++) {
+				diag += A[p][p] * A[p][p];
+				for (int q = p + 1; q < n; q++)
+					off += A[p][q] * A[p][q];
+			}
+			if (off <= 1e-30 * diag)
+				break;
+
+			for (int p = 0; p < n; p++) {
+				for (int q = p + 1; q < n; q++) {
+					if (A[p][q] == 0.0)
+						continue;
+					// rotation that zeros A[p][q]
+					double theta = (A[q][q] - A[p][p]) / (2 * A[p][q]);
+					double t = (theta >= 0 ? 1.0 : -1.0) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+					double c = 1.0 / Math.sqrt(t * t + 1), s = t * c;
+					for (int k = 0; k < n; k++) {
+						double akp = A[k][p], akq = A[k][q];
+						A[k][p] = c * akp - s * akq;
+						A[k][q] = s * akp + c * akq;
+					}
+					for (int k = 0; k < n; k++) {
+						double apk = A[p][k], aqk = A[q][k];
+						A[p][k] = c * apk - s * aqk;
+						A[q][k] = s * apk + c * aqk;
+						double vkp = V[k][p], vkq = V[k][q];
+						V[k][p] = c * vkp - s * vkq;
+						V[k][q] = s * vkp + c * vkq;
+					}
+				}
+			}
+		}
+
+		final double[] lambda = new double[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			lambda[i] = A[i][i];
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(lambda[b], lambda[a]);
+			}
+		});
+		DenseMatrix res = new DenseMatrix(n, n);
+		for (int c = 0; c < n; c++)
+			for (int k = 0; k < n; k++)
+				res.set(k, c, V[k][order[c]]);
+		return res;
+	}
+
+	/**
+	 * Orthonormalize the columns of a matrix in place by the modified Gram-Schmidt process
+	 */
+	private static void orthonormalize(DenseMatrix Y) {
+		int numRows = Y.numRows(), numColumns = Y.numColumns();
+		for (int c = 0; c < numColumns; c++) {
+			for (int prev = 0; prev < c; prev++) {
+				double dot = 0;
+				for (int r = 0; r < numRows; r++)
+					dot += Y.get(r, prev) * Y.get(r, c);
+				for (int r = 0; r < numRows; r++)
+					Y.add(r, c, -dot * Y.get(r, prev));
+			}
+			double norm = 0;
+			for (int r = 0; r < numRows; r++)
+				norm += Y.get(r, c) * Y.get(r, c);
+			norm = Math.sqrt(norm);
+			if (norm > 0)
+				for (int r = 0; r < numRows; r++)
+					Y.set(r, c, Y.get(r, c) / norm);
+		}
+	}
+
+	/**
+	 * @return F^T Y
+	 */
+	private static DenseMatrix transMultiply(SparseMatrix F, DenseMatrix Y) {
+		DenseMatrix res = new DenseMatrix(F.numColumns(), Y.numColumns());
+		int l = Y.numColumns();
+		for (MatrixEntry me : F)
+			Blas.axpy(l, me.get(), Y.getData(), Y.rowOffset(me.row()), res.getData(), res.rowOffset(me.column()));
+		return res;
+	}
+
+	/**
+	 * @return F T
+	 */
+	private static DenseMatrix multiply(SparseMatrix F, DenseMatrix T) {
+		DenseMatrix res = new DenseMatrix(F.numRows(), T.numColumns());
+		int l = T.numColumns();
+		for (MatrixEntry me : F)
+			Blas.axpy(l, me.get(), T.getData(), T.rowOffset(me.column()), res.getData(), res.rowOffset(me.row()));
+		return res;
+	}
+
+	/**
+	 * @return the projected (feature, item) matrix R F
+	 */
+	private SparseMatrix project(SparseMatrix F, DenseMatrix R) {
+		DenseMatrix projected = transMultiply(F, R.transpose());
+		int size = 0, capacity = projected.numRows() * projected.numColumns();
+		int[] features = new int[capacity], items = new int[capacity];
+		double[] values = new double[capacity];
+		for (int j = 0; j < projected.numRows(); j++)
+			for (int r = 0; r < projected.numColumns(); r++) {
+				double value = projected.get(j, r);
+				if (value != 0.0) {
+					features[size] = r;
+					items[size] = j;
+					values[size++] = value;
+				}
+			}
+		return new SparseMatrix(R.numRows(), F.numColumns(), features, items, values, size);
+	}
+
+	// header line of the visual file that gives the dimension of the features, e.g., "# dim=512"
+	private static final Pattern VISUAL_HEADER = Pattern.compile("#\\s*dim\\s*[=:]?\\s*(\\d+)",
+			Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * @return the dimension of the visual features, given by a header line such as "# dim=512" of the visual file, or
+	 *         otherwise by the number of values in its first row; other lines starting with "#" are comments
+	 */
+	protected int getVisualDimension() throws Exception {
 		BufferedReader br = FileIO.getReader(visualfile);
-		String line = null;
-		float max = 0;
-		float min = 10;
-		while ((line = br.readLine()) != null) {
-			String[] itemfeatures = line.split(",");
-			String realitemid = itemfeatures[0];
-			if (rateDao.getItemIds().containsKey(realitemid)) {
-				int inneritemid = rateDao.getItemIds().get(realitemid);
-				for (int i = 0; i < numvisualfactors; i++) {
-					float value = Float.parseFloat(itemfeatures[i + 1]);
-					if (value > 0.0) {
-						dataTable.put(i, inneritemid, Double.parseDouble(String.valueOf(value)));
-						colMap.put(inneritemid, i);
-						if (value > max) {
-							max = value;
-						}
-						if (value < min) {
-							min = value;
+		try {
+			String line = null;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				int dim;
+				if (line.startsWith("#")) {
+					Matcher header = VISUAL_HEADER.matcher(line);
+					if (!header.matches())
+						continue;
+					dim = Integer.parseInt(header.group(1));
+					visualDimDeclared = true;
+				} else
+					dim = line.split(",").length - 1;
+				if (dim <= 0)
+					throw new IOException("No visual features found in " + visualfile);
+				Logs.debug("Visual features have {} dimensions", dim);
+				return dim;
+			}
+		} finally {
+			br.close();
+		}
+		throw new IOException("Visual file " + visualfile + " is empty");
+	}
+
+	/**
+	 * @return a (feature, item) matrix of the visual file, normalized by the min and max of positive feature values
+	 */
+	protected SparseMatrix readVisualFactors() throws Exception {
+		if (visualCachePath != null)
+			return mapVisualCache();
+
+		Map<String, Integer> itemIds = rateDao.getItemIds();
+		// positive features in the coordinate format
+		int size = 0;
+		int[] features = new int[1 << 16], items = new int[1 << 16];
+		double[] values = new double[1 << 16];
+		double max = 0;
+		double min = 10;
+		FeatureParser parser = new FeatureParser(new FileInputStream(FileIO.getResource(visualfile)));
+		try {
+			while (parser.hasNext()) {
+				if (parser.skipComment())
+					continue;
+				String realitemid = parser.token();
+				Integer inneritemid = itemIds.get(realitemid);
+				// number of fields, and the number up to the last non-blank one
+				int numValues = 0, length = 0;
+				while (parser.nextField()) {
+					if (!parser.isBlank())
+						length = numValues + 1;
+					if (inneritemid == null) {
+						parser.skipToken();
+					} else {
+						double value = parser.number();
+						if (value > 0.0 && numValues < numrawvisualfactors) {
+							if (size == values.length) {
+								features = Arrays.copyOf(features, 2 * size);
+								items = Arrays.copyOf(items, 2 * size);
+								values = Arrays.copyOf(values, 2 * size);
+							}
+							features[size] = numValues;
+							items[size] = inneritemid;
+							values[size++] = value;
+							if (value > max) {
+								max = value;
+							}
+							if (value < min) {
+								min = value;
+							}
 						}
 					}
+					numValues++;
 				}
+				// trailing blank fields are dropped, as by String.split
+				if (length > numrawvisualfactors || numValues < numrawvisualfactors)
+					throw new IOException("Item " + realitemid + " has " + length + " visual features, but "
+							+ numrawvisualfactors + " are expected");
 			}
+		} finally {
+			parser.close();
 		}
-		br.close();
-		SparseMatrix itemfeaturematrix = new SparseMatrix(numvisualfactors, numItems, dataTable, colMap);
-		itemfeaturematrix.normalize(min, max);
+		SparseMatrix itemfeaturematrix = new SparseMatrix(numrawvisualfactors, numItems, features, items, values,
+				size);
+		visualMin = (float) min;
+		visualMax = (float) max;
+		itemfeaturematrix.normalize(visualMin, visualMax);
 		return itemfeaturematrix;
 	}
 
+	/**
+	 * Binary cache of the visual file, in the big-endian order:
+	 * <ul>
+	 * <li>header: magic, version, number of features, parse options (see {@link #visualParseOptions()}), number of
+	 * items, number of entries (ints), and the min and max of positive features (floats)</li>
+	 * <li>raw item ids, each as the length (unsigned short) and the UTF-8 bytes</li>
+	 * <li>row pointers of the (item, feature) matrix of positive features in CRS (ints)</li>
+	 * <li>feature indices (ints) and values (floats) of the entries</li>
+	 * <li>sum, sum of squares (doubles) and number of entries (ints) of each feature</li>
+	 * </ul>
+	 * The cache holds all the items of the visual file, so that it does not depend on the ratings and can be shared by
+	 * all folds and jobs on the same data.
+	 */
+	static final int VISUAL_CACHE_MAGIC = 0x56465043, VISUAL_CACHE_VERSION = 2, VISUAL_CACHE_HEADER = 32;
+
+	// parse options of the visual file: blank fields are absent features, trailing blank fields are dropped, and the
+	// dimension is declared by a "# dim=" header rather than taken from the first line
+	static final int PARSE_BLANK_ABSENT = 1, PARSE_TRAILING_DROPPED = 2, PARSE_DECLARED_DIM = 4;
+
+	/**
+	 * @return the options the visual file is parsed with, which a cache must have been converted with to be reused
+	 */
+	protected int visualParseOptions() {
+		return PARSE_BLANK_ABSENT | PARSE_TRAILING_DROPPED | (visualDimDeclared ? PARSE_DECLARED_DIM : 0);
+	}
+
+	/**
+	 * @return the path of the binary cache of the visual file, which is converted if the cache is missing, older than
+	 *         the visual file or of another dimension or parse options; or null if it cannot be written, so that the
+	 *         visual file is parsed as text
+	 */
+	protected String getVisualCache() throws Exception {
+		String path = visualfile + ".csr.bin";
+		File cache = new File(path);
+		if (cache.exists() && cache.lastModified() >= new File(FileIO.getResource(visualfile)).lastModified()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+			try {
+				if (in.readInt() == VISUAL_CACHE_MAGIC && in.readInt() == VISUAL_CACHE_VERSION
+						&& in.readInt() == numrawvisualfactors && in.readInt() == visualParseOptions())
+					return path;
+			} finally {
+				in.close();
+			}
+		}
+
+		// parse all the items of the visual file
+		List<String> ids = new ArrayList<>();
+		int size = 0;
+		int[] ptr = new int[1 << 10], features = new int[1 << 16];
+		float[] values = new float[1 << 16];
+		float max = 0, min = Float.MAX_VALUE;
+		double[] sums = new double[numrawvisualfactors], squares = new double[numrawvisualfactors];
+		int[] counts = new int[numrawvisualfactors];
+		FeatureParser parser = new FeatureParser(new FileInputStream(FileIO.getResource(visualfile)));
+		try {
+			while (parser.hasNext()) {
+				if (parser.skipComment())
+					continue;
+				String realitemid = parser.token();
+				// number of fields, and the number up to the last non-blank one
+				int numValues = 0, length = 0;
+				while (parser.nextField()) {
+					if (!parser.isBlank())
+						length = numValues + 1;
+					float value = (float) parser.number();
+					if (value > 0.0 && numValues < numrawvisualfactors) {
+						if (size == values.length) {
+							features = Arrays.copyOf(features, 2 * size);
+							values = Arrays.copyOf(values, 2 * size);
+						}
+						features[size] = numValues;
+						values[size++] = value;
+						max = Math.max(max, value);
+						min = Math.min(min, value);
+						sums[numValues] += value;
+						squares[numValues] += (double) value * value;
+						counts[numValues]++;
+					}
+					numValues++;
+				}
+				// trailing blank fields are dropped, as by String.split
+				if (length > numrawvisualfactors || numValues < numrawvisualfactors)
+					throw new IOException("Item " + realitemid + " has " + length + " visual features, but "
+							+ numrawvisualfactors + " are expected");
+				ids.add(realitemid);
+				if (ids.size() == ptr.length)
+					ptr = Arrays.copyOf(ptr, 2 * ptr.length);
+				ptr[ids.size()] = size;
+			}
+		} finally {
+			parser.close();
+		}
+
+		// write aside and move, so that concurrent jobs never see a partial cache
+		File tmp = null;
+		try {
+			tmp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+			writeVisualCache(tmp, ids, ptr, features, values, size, min, max, sums, squares, counts);
+			Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Logs.warn("Visual cache {} cannot be written, and the visual file is parsed as text: {}", path, e.getMessage());
+			if (tmp != null)
+				tmp.delete();
+			return null;
+		}
+		Logs.debug("Visual file is converted to {}: {} items, {} positive features", new Object[] { path, ids.size(),
+				size });
+
+		return path;
+	}
+
+	/**
+	 * Write the binary cache of the visual file (see {@link #VISUAL_CACHE_MAGIC})
+	 */
+	private void writeVisualCache(File file, List<String> ids, int[] ptr, int[] features, float[] values, int size,
+			float min, float max, double[] sums, double[] squares, int[] counts) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(VISUAL_CACHE_MAGIC);
+			out.writeInt(VISUAL_CACHE_VERSION);
+			out.writeInt(numrawvisualfactors);
+			out.writeInt(visualParseOptions());
+			out.writeInt(ids.size());
+			out.writeInt(size);
+			out.writeFloat(min);
+			out.writeFloat(max);
+			for (String id : ids) {
+				byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+				if (bytes.length > 0xffff)
+					throw new IOException("Item id is too long: " + id);
+				out.writeShort(bytes.length);
+				out.write(bytes);
+			}
+			for (int r = 0; r <= ids.size(); r++)
+				out.writeInt(ptr[r]);
+			for (int n = 0; n < size; n++)
+				out.writeInt(features[n]);
+			for (int n = 0; n < size; n++)
+				out.writeFloat(values[n]);
+			for (int d = 0; d < numrawvisualfactors; d++)
+				out.writeDouble(sums[d]);
+			for (int d = 0; d < numrawvisualfactors; d++)
+				out.writeDouble(squares[d]);
+			for (int d = 0; d < numrawvisualfactors; d++)
+				out.writeInt(counts[d]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Map the binary cache of the visual file into memory, and take the (feature, item) matrix of the items in the
+	 * ratings, normalized by the min and max of their positive features
+	 */
+	protected SparseMatrix mapVisualCache() throws Exception {
+		Map<String, Integer> itemIds = rateDao.getItemIds();
+		FileChannel channel = FileChannel.open(new File(visualCachePath).toPath(), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Visual cache " + visualCachePath
+						+ " is too large to be mapped, please use --no-visual-cache");
+			MappedByteBuffer buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			buf.position(16);
+			int numRows = buf.getInt(), nnz = buf.getInt();
+			buf.position(VISUAL_CACHE_HEADER);
+
+			// raw item ids -> inner ids, or -1 if not in the ratings
+			int[] inner = new int[numRows];
+			int numMapped = 0;
+			boolean[] mapped = new boolean[numItems];
+			boolean duplicated = false;
+			byte[] bytes = new byte[64];
+			for (int r = 0; r < numRows; r++) {
+				int length = buf.getShort() & 0xffff;
+				if (length > bytes.length)
+					bytes = new byte[length];
+				buf.get(bytes, 0, length);
+				Integer inneritemid = itemIds.get(new String(bytes, 0, length, StandardCharsets.UTF_8));
+				inner[r] = inneritemid == null ? -1 : inneritemid;
+				if (inneritemid != null) {
+					numMapped++;
+					duplicated |= mapped[inneritemid];
+					mapped[inneritemid] = true;
+				}
+			}
+			int ptrPos = buf.position(), featurePos = ptrPos + 4 * (numRows + 1), valuePos = featurePos + 4 * nnz;
+			int statsPos = valuePos + 4 * nnz;
+
+			int size = 0;
+			for (int r = 0; r < numRows; r++)
+				if (inner[r] >= 0)
+					size += buf.getInt(ptrPos + 4 * (r + 1)) - buf.getInt(ptrPos + 4 * r);
+			int[] features = new int[size], items = new int[size];
+			double[] values = new double[size];
+			float max = 0;
+			float min = 10;
+			for (int r = 0, n = 0; r < numRows; r++) {
+				if (inner[r] < 0)
+					continue;
+				for (int idx = buf.getInt(ptrPos + 4 * r), end = buf.getInt(ptrPos + 4 * (r + 1)); idx < end; idx++) {
+					float value = buf.getFloat(valuePos + 4 * idx);
+					features[n] = buf.getInt(featurePos + 4 * idx);
+					items[n] = inner[r];
+					values[n++] = value;
+					if (value > max) {
+						max = value;
+					}
+					if (value < min) {
+						min = value;
+					}
+				}
+			}
+			SparseMatrix itemfeaturematrix = new SparseMatrix(numrawvisualfactors, numItems, features, items, values,
+					size);
+			itemfeaturematrix.normalize(min, max);
+			visualMin = min;
+			visualMax = max;
+
+			// if all the items are in the ratings (once), the squared norms of the normalized features follow from the
+			// sums
+			if (numMapped == numRows && !duplicated) {
+				visualNorms = new DenseVector(numrawvisualfactors);
+				double range = max - min;
+				for (int d = 0; d < numrawvisualfactors; d++) {
+					double sum = buf.getDouble(statsPos + 8 * d);
+					double square = buf.getDouble(statsPos + 8 * (numrawvisualfactors + d));
+					int count = buf.getInt(statsPos + 16 * numrawvisualfactors + 4 * d);
+					visualNorms.set(d, (square - 2 * min * sum + count * (double) min * min) / (range * range));
+				}
+			}
+			Logs.debug("Visual features of {} items are mapped from {}", numMapped, visualCachePath);
+
+			return itemfeaturematrix;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Parser of comma-separated lines of numbers, which reads bytes into a reused buffer and parses numbers without
+	 * creating strings. Decimal numbers of at most 15 significant digits and exponents within [-22, 22] are parsed
+	 * directly and exactly rounded (Clinger's fast path); others fall back to {@link Double#parseDouble(String)}.
+	 */
+	static class FeatureParser {
+		private static final double[] POW10 = new double[23];
+		static {
+			POW10[0] = 1.0;
+			for (int e = 1; e < POW10.length; e++)
+				POW10[e] = POW10[e - 1] * 10;
+		}
+
+		private final InputStream in;
+		private final byte[] buf = new byte[1 << 16];
+		private int pos, limit;
+		// the current token
+		private byte[] token = new byte[64];
+		private int length;
+
+		FeatureParser(InputStream in) {
+			this.in = in;
+		}
+
+		private int peek() throws IOException {
+			if (pos == limit) {
+				limit = in.read(buf, 0, buf.length);
+				pos = 0;
+				if (limit <= 0) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buf[pos];
+		}
+
+		/**
+		 * @return true if there are more lines
+		 */
+		boolean hasNext() throws IOException {
+			return peek() != -1;
+		}
+
+		/**
+		 * Skip the current line if it is blank or a comment starting with '#'
+		 * 
+		 * @return true if the line is skipped
+		 */
+		boolean skipComment() throws IOException {
+			int c = peek();
+			if (c != '#' && c != '\n' && c != '\r')
+				return false;
+			while ((c = peek()) != -1 && c != '\n')
+				pos++;
+			if (c == '\n')
+				pos++;
+			return true;
+		}
+
+		/**
+		 * Move to the next field of the current line
+		 * 
+		 * @return true if there is one; otherwise, the end of the line is consumed
+		 */
+		boolean nextField() throws IOException {
+			int c = peek();
+			if (c == ',') {
+				pos++;
+				return true;
+			}
+			if (c == '\r') {
+				pos++;
+				c = peek();
+			}
+			if (c == '\n')
+				pos++;
+			return false;
+		}
+
+		/**
+		 * @return true if the current field is blank, e.g., between two commas or after a trailing comma
+		 */
+		boolean isBlank() throws IOException {
+			int c = peek();
+			return c == -1 || c == ',' || c == '\n' || c == '\r';
+		}
+
+		/**
+		 * Read the current field into the token buffer
+		 */
+		private void readToken() throws IOException {
+			length = 0;
+			int c;
+			while ((c = peek()) != -1 && c != ',' && c != '\n' && c != '\r') {
+				if (length == token.length)
+					token = Arrays.copyOf(token, 2 * length);
+				token[length++] = (byte) c;
+				pos++;
+			}
+		}
+
+		/**
+		 * Skip the current field
+		 */
+		void skipToken() throws IOException {
+			int c;
+			while ((c = peek()) != -1 && c != ',' && c != '\n' && c != '\r')
+				pos++;
+		}
+
+		/**
+		 * @return the current field as a string
+		 */
+		String token() throws IOException {
+			readToken();
+			return new String(token, 0, length, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return the current field as a number, or 0 if it is blank, i.e., a blank field is an absent feature
+		 */
+		double number() throws IOException {
+			readToken();
+			if (length == 0)
+				return 0;
+			int i = 0, digits = 0, exponent = 0;
+			long mantissa = 0;
+			boolean negative = false, hasDigits = false, isFast = true;
+			if (length > 0 && (token[0] == '-' || token[0] == '+')) {
+				negative = token[0] == '-';
+				i++;
+			}
+			for (; i < length && token[i] >= '0' && token[i] <= '9'; i++) {
+				hasDigits = true;
+				mantissa = mantissa * 10 + (token[i] - '0');
+				if (mantissa != 0 && ++digits > 15)
+					isFast = false;
+			}
+			if (i < length && token[i] == '.') {
+				for (i++; i < length && token[i] >= '0' && token[i] <= '9'; i++) {
+					hasDigits = true;
+					mantissa = mantissa * 10 + (token[i] - '0');
+					exponent--;
+					if (mantissa != 0 && ++digits > 15)
+						isFast = false;
+				}
+			}
+			if (hasDigits && i < length && (token[i] == 'e' || token[i] == 'E')) {
+				int sign = 1, e = 0;
+				if (++i < length && (token[i] == '-' || token[i] == '+'))
+					sign = token[i++] == '-' ? -1 : 1;
+				int start = i;
+				// longer exponents stop the loop early, and are left to the fallback
+				for (; i < length && token[i] >= '0' && token[i] <= '9' && i - start < 4; i++)
+					e = e * 10 + (token[i] - '0');
+				if (i == start)
+					isFast = false;
+				exponent += sign * e;
+			}
+			if (!hasDigits || i != length || exponent < -22 || exponent > 22)
+				isFast = false;
+			if (!isFast)
+				return Double.parseDouble(new String(token, 0, length, StandardCharsets.US_ASCII));
+
+			double value = mantissa;
+			if (exponent < 0)
+				value /= POW10[-exponent];
+			else if (exponent > 0)
+				value *= POW10[exponent];
+			return negative ? -value : value;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
 	@Override
 	protected double predict(int u, int j) throws Exception {
 		double rating = 0.0;
-		if (trainMatrix.column(j).size() == 0) {
-			rating = P.row(u).inner(QS.column(j));
-			// System.out.println(rating);
+		DenseMatrix qs = coldProjection();
+		if (coldItems[j] >= 0) {
+			rating = DenseMatrix.rowMult(P, u, qs, coldItems[j]);
 		} else {
 			rating = DenseMatrix.rowMult(P, u, Q, j);
 		}
 		return rating;
 	}
 
+	/**
+	 * @return the score of item j for a user given by its factors, e.g., a folded-in user
+	 */
+	public double predict(DenseVector pu, int j) {
+		DenseMatrix qs = coldProjection();
+		DenseMatrix factors = Q;
+		int row = j;
+		if (coldItems[j] >= 0) {
+			factors = qs;
+			row = coldItems[j];
+		}
+
+		double rating = 0.0;
+		for (int f = 0; f < numFactors; f++)
+			rating += pu.get(f) * factors.get(row, f);
+		return rating;
+	}
+
+	/**
+	 * @return the score of an item given by its factors, e.g., a folded-in item, for user u
+	 */
+	public double predict(int u, DenseVector qi) {
+		double rating = 0.0;
+		for (int f = 0; f < numFactors; f++)
+			rating += P.get(u, f) * qi.get(f);
+		return rating;
+	}
+
 	@Override
 	public String toString() {
-		return Strings.toString(new Object[] { alpha, numFactors, regU, regI, beta, gama, lamutaE, numIters }, ",");
+		return Strings.toString(new Object[] { alpha, numFactors, regU, regI, beta, gama, lamutaE, maxIters }, ",");
 	}
 }
@@ -0,0 +1,251 @@
+package librec.ranking;
+
+import librec.data.DenseMatrix;
+import librec.data.DenseVector;
+
+/**
+ * Per-row coordinate descent updates of {@link VFPMF}, shared by the in-process training and the worker processes of
+ * the parameter-server mode ({@link VFPMFWorker}). The factor matrices and their Gram caches are passed in by the
+ * caller, so a kernel only keeps the hyper-parameters and can be used by many threads at the same time.
+ */
+final class VFPMFKernel {
+	final int numFactors;
+	final double alpha, beta, gama, regU, regI, lamutaE;
+
+	VFPMFKernel(int numFactors, double alpha, double beta, double gama, double regU, double regI, double lamutaE) {
+		this.numFactors = numFactors;
+		this.alpha = alpha;
+		this.beta = beta;
+		this.gama = gama;
+		this.regU = regU;
+		this.regI = regI;
+		this.lamutaE = lamutaE;
+	}
+
+	/**
+	 * Step 1 of VFPMF for one user: a pass of coordinate descent over the user factors against fixed item factors
+	 *
+	 * @param pu
+	 *            user factors, updated in place
+	 * @param items
+	 *            items of the user
+	 * @param w_items
+	 *            confidences of the items
+	 * @param prediction_items
+	 *            scratch space for the predictions of the items
+	 * @param size
+	 *            number of items
+	 * @param Q
+	 *            item factors
+	 * @param Sq
+	 *            Gram matrix of Q
+	 */
+	void updateUser(double[] pu, int[] items, double[] w_items, double[] prediction_items, int size, DenseMatrix Q,
+			DenseMatrix Sq) {
+		for (int n = 0; n < size; n++) {
+			double pred = 0;
+			for (int f = 0; f < numFactors; f++)
+				pred += pu[f] * Q.get(items[n], f);
+			prediction_items[n] = pred;
+		}
+		for (int f = 0; f < numFactors; f++) {
+			double numer = 0, denom = regU + Sq.get(f, f);
+
+			for (int k = 0; k < numFactors; k++) {
+				if (f != k) {
+					numer -= pu[k] * Sq.get(f, k);
+				}
+			}
+			double puf = pu[f];
+			for (int n = 0; n < size; n++) {
+				double qif = Q.get(items[n], f);
+				prediction_items[n] -= puf * qif;
+				numer += (w_items[n] - (w_items[n] - 1) * prediction_items[n]) * qif;
+				denom += (w_items[n] - 1) * qif * qif;
+			}
+			// update puf
+			puf = numer / denom;
+			pu[f] = puf;
+			for (int n = 0; n < size; n++) {
+				prediction_items[n] += puf * Q.get(items[n], f);
+			}
+		}
+	}
+
+	/**
+	 * Step 2 of VFPMF for one item: a pass of coordinate descent over the item factors against fixed user factors,
+	 * related-item factors and visual projection
+	 *
+	 * @param qi
+	 *            item factors, updated in place
+	 * @param etf
+	 *            visual projection of the item, i.e., its column of E^T F
+	 * @param users
+	 *            users of the item
+	 * @param w_users
+	 *            confidences of the users
+	 * @param prediction_users
+	 *            scratch space for the predictions of the users
+	 * @param numUsers
+	 *            number of users
+	 * @param related
+	 *            items bought together with the item
+	 * @param q_itemrelated
+	 *            confidences of the related items
+	 * @param prediction_itemrelated
+	 *            scratch space for the predictions of the related items
+	 * @param numRelated
+	 *            number of related items
+	 * @param P
+	 *            user factors
+	 * @param Sp
+	 *            Gram matrix of P
+	 * @param Z
+	 *            related-item factors
+	 * @param Sz
+	 *            Gram matrix of Z
+	 */
+	void updateItem(double[] qi, double[] etf, int[] users, double[] w_users, double[] prediction_users, int numUsers,
+			int[] related, double[] q_itemrelated, double[] prediction_itemrelated, int numRelated, DenseMatrix P,
+			DenseMatrix Sp, DenseMatrix Z, DenseMatrix Sz) {
+		for (int n = 0; n < numUsers; n++) {
+			double pred = 0;
+			for (int f = 0; f < numFactors; f++)
+				pred += P.get(users[n], f) * qi[f];
+			prediction_users[n] = pred;
+		}
+		for (int n = 0; n < numRelated; n++) {
+			double pred = 0;
+			for (int f = 0; f < numFactors; f++)
+				pred += qi[f] * Z.get(related[n], f);
+			prediction_itemrelated[n] = pred;
+		}
+		for (int f = 0; f < numFactors; f++) {
+			double numer = 0, denom = Sp.get(f, f) + regI;
+			double numer1 = 0, denom1 = Sz.get(f, f);
+			for (int k = 0; k < numFactors; k++) {
+				if (f != k) {
+					numer -= qi[k] * Sp.get(k, f);
+					numer1 -= qi[k] * Sz.get(k, f);
+				}
+			}
+			double qif = qi[f];
+			for (int n = 0; n < numUsers; n++) {
+				double puf = P.get(users[n], f);
+				prediction_users[n] -= puf * qif;
+				numer += (w_users[n] - (w_users[n] - 1) * prediction_users[n]) * puf;
+				denom += (w_users[n] - 1) * puf * puf;
+			}
+			for (int n = 0; n < numRelated; n++) {
+				double zgf = Z.get(related[n], f);
+				prediction_itemrelated[n] -= zgf * qif;
+				numer1 += (q_itemrelated[n] - (q_itemrelated[n] - 1) * prediction_itemrelated[n]) * zgf;
+				denom1 += (q_itemrelated[n] - 1) * zgf * zgf;
+			}
+			// update qif
+			qif = (numer + numer1 * beta + gama * etf[f]) / (denom + denom1 * beta + gama);
+			qi[f] = qif;
+			for (int n = 0; n < numUsers; n++) {
+				prediction_users[n] += P.get(users[n], f) * qif;
+			}
+			for (int n = 0; n < numRelated; n++) {
+				prediction_itemrelated[n] += Z.get(related[n], f) * qif;
+			}
+		}
+	}
+
+	/**
+	 * Step 3 of VFPMF for one related item: a pass of coordinate descent over its factors against fixed item factors
+	 *
+	 * @param zg
+	 *            related-item factors, updated in place
+	 * @param items
+	 *            items bought together with the related item
+	 * @param q_relateditem
+	 *            confidences of the items
+	 * @param prediction_relateditem
+	 *            scratch space for the predictions of the items
+	 * @param size
+	 *            number of items
+	 * @param Q
+	 *            item factors
+	 * @param Sq
+	 *            Gram matrix of Q
+	 */
+	void updateRelated(double[] zg, int[] items, double[] q_relateditem, double[] prediction_relateditem, int size,
+			DenseMatrix Q, DenseMatrix Sq) {
+		for (int n = 0; n < size; n++) {
+			double pred = 0;
+			for (int f = 0; f < numFactors; f++)
+				pred += Q.get(items[n], f) * zg[f];
+			prediction_relateditem[n] = pred;
+		}
+		for (int f = 0; f < numFactors; f++) {
+			double numer = 0, denom = Sq.get(f, f);
+			for (int k = 0; k < numFactors; k++) {
+				if (f != k) {
+					numer -= zg[k] * Sq.get(f, k);
+				}
+			}
+			double zgf = zg[f];
+			for (int n = 0; n < size; n++) {
+				double qif = Q.get(items[n], f);
+				prediction_relateditem[n] -= zgf * qif;
+				numer += (q_relateditem[n] - (q_relateditem[n] - 1) * prediction_relateditem[n]) * qif;
+				denom += (q_relateditem[n] - 1) * qif * qif;
+			}
+			// update zgf
+			zgf = beta * numer / (beta * denom + regI);
+			zg[f] = zgf;
+			for (int n = 0; n < size; n++) {
+				prediction_relateditem[n] += zgf * Q.get(items[n], f);
+			}
+		}
+	}
+
+	/**
+	 * Step 4 of VFPMF for one factor k: coordinate descent over column k of the visual projection E, visiting the
+	 * features in the sequential order. It only touches column k of E and row k of Y.
+	 *
+	 * @param k
+	 *            factor index
+	 * @param E
+	 *            visual projection, updated in place
+	 * @param Y
+	 *            residual matrix, E^T F before and after the update (numFactors x numItems)
+	 * @param Q
+	 *            item factors
+	 * @param rowPtr
+	 *            row pointers of the CRS structure of the (feature, item) matrix F
+	 * @param colInd
+	 *            column indices of the CRS structure of F
+	 * @param rowData
+	 *            values of the CRS structure of F
+	 * @param D
+	 *            squared norms of the rows of F
+	 */
+	void updateVisual(int k, DenseMatrix E, DenseMatrix Y, DenseMatrix Q, int[] rowPtr, int[] colInd,
+			double[] rowData, DenseVector D) {
+		for (int d = 0, numFeatures = rowPtr.length - 1; d < numFeatures; d++) {
+			double numer = 0.0;
+			double edk = E.get(d, k);
+			for (int idx = rowPtr[d]; idx < rowPtr[d + 1]; idx++) {
+				double idj = rowData[idx];
+				if (idj == 0.0)
+					continue;
+				int j = colInd[idx];
+				Y.set(k, j, Y.get(k, j) - edk * idj);
+				numer += (Q.get(j, k) - Y.get(k, j)) * idj;
+			}
+			edk = numer * gama / (gama * D.get(d) + lamutaE);
+			E.set(d, k, edk);
+			for (int idx = rowPtr[d]; idx < rowPtr[d + 1]; idx++) {
+				double idj = rowData[idx];
+				if (idj == 0.0)
+					continue;
+				int j = colInd[idx];
+				Y.set(k, j, Y.get(k, j) + edk * idj);
+			}
+		}
+	}
+}
@@ -0,0 +1,380 @@
+package librec.ranking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+
+import librec.data.DenseMatrix;
+import librec.data.SparseMatrix;
+import librec.data.SparseVector;
+
+/**
+ * Worker process of the parameter-server engine of {@link VFPMF} ({@code -engine ps}). A worker owns a shard of users
+ * and a shard of items, together with their ratings, bought-together links and visual features, and keeps local
+ * factors with the rows of its shards followed by the rows of other shards that its shards read. In each step, it
+ * receives the rows that changed since the last step and are read by its shards, together with the new Gram matrix,
+ * runs the per-row updates of {@link VFPMFKernel} on its shard, and pushes back the updated rows, with their partial
+ * Gram matrix and their partial sums of the loss. The visual projection E is updated by the server, of which a worker
+ * receives the rows of the features of its items, and projects its items on them. Only the row updates are thus
+ * distributed: the server keeps all of the visual features and the full factors, and runs the E-step itself.
+ * <p>
+ * Workers are started by the server on the local machine, or by hand with
+ * {@code java -cp <classpath> librec.ranking.VFPMFWorker host port}.
+ */
+public class VFPMFWorker {
+	// commands of the server
+	static final byte STOP = 0, USERS = 1, ITEMS = 2, RELATED = 3, VISUAL = 4;
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	private VFPMFKernel kernel;
+	private int numFactors;
+	// numbers of users and items in the shards
+	private int numUsers, numItems;
+	// ratings of the users and of the items, links from and to the items, and visual features of the items, where
+	// entries are indexed by the rows of the local factors
+	private Block userRatings, itemRatings, itemRelated, relatedItems, itemFeatures;
+	// local factors: rows [0, numUsers) of P and [0, numItems) of Q and Z belong to the shards, the others are copies
+	private DenseMatrix P, Q, Z, Sp, Sq, Sz;
+	// rows of E of the features of the items, and the visual projections E^T f_i of the items (one per row)
+	private DenseMatrix E, Y;
+	// caches of indices, confidences and predictions of a row, and of the related items of an item
+	private int[] indices, related;
+	private double[] weights, predictions, q_itemrelated, prediction_itemrelated;
+	private double[] factors, etf;
+
+	VFPMFWorker(DataInputStream in, DataOutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.err.println("Usage: java librec.ranking.VFPMFWorker host port");
+			System.exit(-1);
+		}
+
+		Socket socket = new Socket(args[0], Integer.parseInt(args[1]));
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			VFPMFWorker worker = new VFPMFWorker(in, out);
+			worker.setup();
+			worker.run();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Receive the hyper-parameters, the shards, the rows of other shards that they read, and the factors of the
+	 * shards together with the rows of Q and the Gram matrix Sq read by the first step
+	 */
+	void setup() throws IOException {
+		numFactors = in.readInt();
+		kernel = new VFPMFKernel(numFactors, in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(),
+				in.readDouble(), in.readDouble());
+		int userFrom = in.readInt(), userTo = in.readInt(), itemFrom = in.readInt(), itemTo = in.readInt();
+		numUsers = userTo - userFrom;
+		numItems = itemTo - itemFrom;
+		int[] remoteUsers = readIndices(in), remoteItems = readIndices(in), remoteRelated = readIndices(in);
+		int[] features = readIndices(in);
+
+		userRatings = Block.read(in);
+		itemRatings = Block.read(in);
+		itemRelated = Block.read(in);
+		relatedItems = Block.read(in);
+		itemFeatures = Block.read(in);
+		userRatings.localize(itemFrom, itemTo, remoteItems);
+		itemRatings.localize(userFrom, userTo, remoteUsers);
+		itemRelated.localize(itemFrom, itemTo, remoteRelated);
+		relatedItems.localize(itemFrom, itemTo, remoteItems);
+		itemFeatures.localize(0, 0, features);
+
+		P = new DenseMatrix(numUsers + remoteUsers.length, numFactors);
+		Q = new DenseMatrix(numItems + remoteItems.length, numFactors);
+		Z = new DenseMatrix(numItems + remoteRelated.length, numFactors);
+		E = new DenseMatrix(features.length, numFactors);
+		Y = new DenseMatrix(numItems, numFactors);
+		readRows(in, P, 0, numUsers);
+		readRows(in, Q, 0, numItems);
+		readRows(in, Z, 0, numItems);
+		readRows(in, Q, numItems, Q.numRows());
+		Sq = DenseMatrix.read(in);
+
+		int capacity = Math.max(Math.max(userRatings.maxSize(), itemRatings.maxSize()),
+				Math.max(itemRelated.maxSize(), relatedItems.maxSize()));
+		indices = new int[capacity];
+		weights = new double[capacity];
+		predictions = new double[capacity];
+		related = new int[itemRelated.maxSize()];
+		q_itemrelated = new double[related.length];
+		prediction_itemrelated = new double[related.length];
+		factors = new double[numFactors];
+		etf = new double[numFactors];
+	}
+
+	/**
+	 * Serve the commands of the server until it stops
+	 */
+	void run() throws IOException {
+		while (true) {
+			byte command = in.readByte();
+			switch (command) {
+			case USERS:
+				updateUsers();
+				writeRows(out, P, 0, numUsers);
+				P.gram(0, numUsers).write(out);
+				break;
+			case ITEMS:
+				readRows(in, P, numUsers, P.numRows());
+				Sp = DenseMatrix.read(in);
+				updateItems();
+				writeRows(out, Q, 0, numItems);
+				Q.gram(0, numItems).write(out);
+				out.writeDouble(observedLoss(itemRatings, P, Q));
+				break;
+			case RELATED:
+				readRows(in, Q, numItems, Q.numRows());
+				Sq = DenseMatrix.read(in);
+				updateRelated();
+				writeRows(out, Z, 0, numItems);
+				Z.gram(0, numItems).write(out);
+				out.writeDouble(observedLoss(relatedItems, Q, Z));
+				break;
+			case VISUAL:
+				readRows(in, E, 0, E.numRows());
+				readRows(in, Z, numItems, Z.numRows());
+				Sz = DenseMatrix.read(in);
+				double visualLoss = updateProjections();
+				writeRows(out, Y, 0, numItems);
+				out.writeDouble(visualLoss);
+				break;
+			case STOP:
+				return;
+			default:
+				throw new IOException("Unknown command " + command);
+			}
+			out.flush();
+		}
+	}
+
+	private void updateUsers() {
+		for (int u = 0; u < numUsers; u++) {
+			int n = userRatings.load(u, indices, weights, kernel.alpha);
+			for (int f = 0; f < numFactors; f++)
+				factors[f] = P.get(u, f);
+			kernel.updateUser(factors, indices, weights, predictions, n, Q, Sq);
+			for (int f = 0; f < numFactors; f++)
+				P.set(u, f, factors[f]);
+		}
+	}
+
+	private void updateItems() {
+		for (int i = 0; i < numItems; i++) {
+			int numRaters = itemRatings.load(i, indices, weights, kernel.alpha);
+			int numRelated = itemRelated.load(i, related, q_itemrelated, kernel.alpha);
+			for (int f = 0; f < numFactors; f++) {
+				etf[f] = Y.get(i, f);
+				factors[f] = Q.get(i, f);
+			}
+			kernel.updateItem(factors, etf, indices, weights, predictions, numRaters, related, q_itemrelated,
+					prediction_itemrelated, numRelated, P, Sp, Z, Sz);
+			for (int f = 0; f < numFactors; f++)
+				Q.set(i, f, factors[f]);
+		}
+	}
+
+	private void updateRelated() {
+		for (int g = 0; g < numItems; g++) {
+			int n = relatedItems.load(g, indices, weights, kernel.alpha);
+			for (int f = 0; f < numFactors; f++)
+				factors[f] = Z.get(g, f);
+			kernel.updateRelated(factors, indices, weights, predictions, n, Q, Sq);
+			for (int f = 0; f < numFactors; f++)
+				Z.set(g, f, factors[f]);
+		}
+	}
+
+	/**
+	 * Project the items on the rows of E, i.e., y_i = E^T f_i
+	 *
+	 * @return partial visual loss of the items, sum_i |q_i - y_i|^2
+	 */
+	private double updateProjections() {
+		Block b = itemFeatures;
+		double loss = 0;
+		for (int i = 0; i < numItems; i++) {
+			for (int f = 0; f < numFactors; f++) {
+				double sum = 0;
+				for (int idx = b.ptr[i]; idx < b.ptr[i + 1]; idx++)
+					sum += E.get(b.index[idx], f) * b.data[idx];
+				Y.set(i, f, sum);
+
+				double diff = Q.get(i, f) - sum;
+				loss += diff * diff;
+			}
+		}
+		return loss;
+	}
+
+	/**
+	 * @return partial loss of the observed pairs of a block, sum w (1 - pred)^2 - pred^2, where row r of the block is
+	 *         row r of Y, and its entries are rows of X
+	 */
+	private double observedLoss(Block b, DenseMatrix X, DenseMatrix Y) {
+		double loss = 0;
+		for (int r = 0; r < b.ptr.length - 1; r++) {
+			for (int idx = b.ptr[r]; idx < b.ptr[r + 1]; idx++) {
+				double pred = DenseMatrix.rowMult(X, b.index[idx], Y, r), w = 1.0 + kernel.alpha * b.data[idx];
+				loss += w * (1 - pred) * (1 - pred) - pred * pred;
+			}
+		}
+		return loss;
+	}
+
+	/**
+	 * Rows (or columns) [from, to) of a sparse matrix in CRS-like arrays: row r has entries [ptr[r - from], ptr[r - from
+	 * + 1])
+	 */
+	static class Block {
+		int[] ptr, index;
+		double[] data;
+
+		int maxSize() {
+			return VFPMF.maxSize(ptr);
+		}
+
+		/**
+		 * Index the entries by the rows of local factors: index i in [from, to) becomes i - from, and the others
+		 * follow in the order of the ascending indices in remote
+		 */
+		void localize(int from, int to, int[] remote) {
+			for (int idx = 0; idx < index.length; idx++) {
+				int i = index[idx];
+				index[idx] = i >= from && i < to ? i - from : to - from + Arrays.binarySearch(remote, i);
+			}
+		}
+
+		/**
+		 * Copy the indices and confidences 1 + alpha * value of a row
+		 *
+		 * @return the size of the row
+		 */
+		int load(int r, int[] indices, double[] weights, double alpha) {
+			int n = 0;
+			for (int idx = ptr[r]; idx < ptr[r + 1]; idx++) {
+				indices[n] = index[idx];
+				weights[n++] = 1.0 + alpha * data[idx];
+			}
+			return n;
+		}
+
+		static void write(DataOutputStream out, SparseMatrix M, boolean isRow, int from, int to) throws IOException {
+			SparseVector[] vecs = new SparseVector[to - from];
+			int size = 0;
+			for (int r = from; r < to; r++) {
+				vecs[r - from] = isRow ? M.row(r) : M.column(r);
+				size += vecs[r - from].getIndex().length;
+			}
+
+			out.writeInt(to - from);
+			out.writeInt(size);
+			for (SparseVector vec : vecs) {
+				int[] index = vec.getIndex();
+				double[] data = vec.getData();
+				out.writeInt(index.length);
+				for (int n = 0; n < index.length; n++) {
+					out.writeInt(index[n]);
+					out.writeDouble(data[n]);
+				}
+			}
+		}
+
+		static Block read(DataInputStream in) throws IOException {
+			Block b = new Block();
+			int rows = in.readInt(), size = in.readInt();
+			b.ptr = new int[rows + 1];
+			b.index = new int[size];
+			b.data = new double[size];
+			for (int r = 0, idx = 0; r < rows; r++) {
+				int n = in.readInt();
+				for (int end = idx + n; idx < end; idx++) {
+					b.index[idx] = in.readInt();
+					b.data[idx] = in.readDouble();
+				}
+				b.ptr[r + 1] = idx;
+			}
+			return b;
+		}
+	}
+
+	/**
+	 * Write rows [from, to) of a dense matrix
+	 */
+	static void writeRows(DataOutputStream out, DenseMatrix M, int from, int to) throws IOException {
+		for (int r = from; r < to; r++)
+			for (int f = 0, k = M.numColumns(); f < k; f++)
+				out.writeDouble(M.get(r, f));
+	}
+
+	/**
+	 * Write the given rows of a dense matrix
+	 */
+	static void writeRows(DataOutputStream out, DenseMatrix M, int[] rows) throws IOException {
+		for (int r : rows)
+			for (int f = 0, k = M.numColumns(); f < k; f++)
+				out.writeDouble(M.get(r, f));
+	}
+
+	/**
+	 * Read rows [from, to) of a dense matrix
+	 */
+	static void readRows(DataInputStream in, DenseMatrix M, int from, int to) throws IOException {
+		for (int r = from; r < to; r++)
+			for (int f = 0, k = M.numColumns(); f < k; f++)
+				M.set(r, f, in.readDouble());
+	}
+
+	/**
+	 * Mark the indices of the entries in rows (or columns) [from, to) of a sparse matrix
+	 */
+	static void mark(boolean[] marks, SparseMatrix M, boolean isRow, int from, int to) {
+		for (int r = from; r < to; r++)
+			for (int i : (isRow ? M.row(r) : M.column(r)).getIndex())
+				marks[i] = true;
+	}
+
+	/**
+	 * @return the marked indices outside [from, to), in ascending order
+	 */
+	static int[] remote(boolean[] marks, int from, int to) {
+		int n = 0;
+		for (int i = 0; i < marks.length; i++)
+			if (marks[i] && (i < from || i >= to))
+				n++;
+		int[] indices = new int[n];
+		for (int i = 0, m = 0; i < marks.length; i++)
+			if (marks[i] && (i < from || i >= to))
+				indices[m++] = i;
+		return indices;
+	}
+
+	static void writeIndices(DataOutputStream out, int[] indices) throws IOException {
+		out.writeInt(indices.length);
+		for (int i : indices)
+			out.writeInt(i);
+	}
+
+	static int[] readIndices(DataInputStream in) throws IOException {
+		int[] indices = new int[in.readInt()];
+		for (int n = 0; n < indices.length; n++)
+			indices[n] = in.readInt();
+		return indices;
+	}
+}
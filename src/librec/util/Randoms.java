@@ -50,6 +50,20 @@ public class Randoms {
 		r = new Random(seed);
 	}
 
+	/**
+	 * @return the underlying random number generator, e.g., to save its state
+	 */
+	public static Random getGenerator() {
+		return r;
+	}
+
+	/**
+	 * Replace the underlying random number generator, e.g., to restore a saved state
+	 */
+	public static void setGenerator(Random random) {
+		r = random;
+	}
+
 	/**
 	 * Random generate an integer in [min, max)
 	 * 